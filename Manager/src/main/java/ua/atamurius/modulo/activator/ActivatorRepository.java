@@ -3,31 +3,72 @@ package ua.atamurius.modulo.activator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ua.atamurius.modulo.manager.LeakInspector;
+
 import java.lang.annotation.Annotation;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Repository of activators.
  */
-public class ActivatorRepository {
+public class ActivatorRepository implements LeakInspector {
 
     private static final Logger log = LoggerFactory.getLogger(ActivatorRepository.class);
 
-    private final Map<Class<?>,Activator> activators = new HashMap<>();
+    private final Map<Class<?>,Activator<?>> activators = new ConcurrentHashMap<>();
+    private final Map<String,Activator<?>> byName = new ConcurrentHashMap<>();
 
     public ActivatorRepository() {
-        activators.put(ActivatorFor.class, new DefaultActivator(this));
+        put(ActivatorFor.class, new DefaultActivator(this));
+    }
+
+    public void register(Class<? extends Annotation> target, Activator<?> activator) {
+        put(target, activator);
     }
 
-    public void register(Class<? extends Annotation> target, Activator activator) {
+    /**
+     * Not overridable, so it is safe to call from constructor.
+     */
+    private void put(Class<? extends Annotation> target, Activator<?> activator) {
         activators.put(target, activator);
+        byName.put(target.getName(), activator);
     }
 
     public void unregister(Class<? extends Annotation> target) {
+        byName.remove(target.getName());
         activators.remove(target);
     }
 
+    /**
+     * Checks if there is activator for annotation with given type name.
+     */
+    public boolean isRegistered(String annotationType) {
+        return byName.containsKey(annotationType);
+    }
+
+    /**
+     * Activates type only for given annotation.
+     */
+    public boolean activate(Class<?> type, Class<? extends Annotation> target) {
+        return activate(type, target, activators.get(target));
+    }
+
+    /**
+     * Activator is registered for target annotation, so it accepts annotations of that type.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Annotation> boolean activate(Class<?> type, Class<T> target, Activator<?> registered) {
+        T annotation = type.getAnnotation(target);
+        Activator<T> activator = (Activator<T>) registered;
+        if (annotation != null && activator != null) {
+            log.debug("{}{} activated by {}", type, annotation, activator);
+            return activator.activate(type, annotation);
+        }
+        return false;
+    }
+
     public boolean activate(Class<?> type) {
         boolean isActivated = false;
         for (Annotation annotation : type.getAnnotations()) {
@@ -40,6 +81,18 @@ public class ActivatorRepository {
         return isActivated;
     }
 
+    @Override
+    public void findHolders(ClassLoader loader, Collection<String> holders) {
+        for (Map.Entry<Class<?>,Activator<?>> e: activators.entrySet()) {
+            if (e.getValue().getClass().getClassLoader() == loader) {
+                holders.add("activator "+ e.getValue().getClass().getName() +" for @"+ e.getKey().getName());
+            }
+            else if (e.getKey().getClassLoader() == loader) {
+                holders.add("activator "+ e.getValue().getClass().getName() +" for annotation @"+ e.getKey().getName());
+            }
+        }
+    }
+
     private Class<?> typeOf(Annotation annotation) {
         return annotation.getClass().getInterfaces()[0];
     }
@@ -0,0 +1,115 @@
+package ua.atamurius.modulo.activator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Annotations of module classes, read from class files without loading them.
+ * Indexes are cached by module content hash, so unchanged JARs are not scanned twice.
+ */
+public class AnnotationIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(AnnotationIndex.class);
+
+    private static final String CLASS = ".class";
+
+    private static final int CACHE_LIMIT =
+            Integer.getInteger(AnnotationIndex.class.getName() +".CACHE_LIMIT", 256);
+
+    private static final Map<String,AnnotationIndex> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String,AnnotationIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,AnnotationIndex> eldest) {
+                    return size() > CACHE_LIMIT;
+                }
+            });
+
+    private final String hash;
+    private final Map<String,Collection<String>> annotations;
+
+    public AnnotationIndex(String hash, Map<String,Collection<String>> annotations) {
+        this.hash = hash;
+        this.annotations = annotations;
+    }
+
+    /**
+     * Puts known index to cache, so module with the same content will not be scanned.
+     */
+    public static void preload(AnnotationIndex index) {
+        cache.put(index.hash, index);
+    }
+
+    /**
+     * Index of given module if it was already scanned or preloaded, null otherwise.
+     */
+    public static AnnotationIndex cached(ModuleArchive archive) {
+        return cache.get(archive.getHash());
+    }
+
+    /**
+     * Index of given module, taken from cache if module content was already scanned.
+     */
+    public static AnnotationIndex of(ModuleArchive archive) {
+        String hash = archive.getHash();
+        AnnotationIndex index = cache.get(hash);
+        if (index == null) {
+            index = scan(archive, hash);
+            cache.put(hash, index);
+        }
+        return index;
+    }
+
+    private static AnnotationIndex scan(ModuleArchive archive, String hash) {
+        Map<String,Collection<String>> annotations = new HashMap<>();
+        for (String entry: archive.getEntries()) {
+            if (entry.endsWith(CLASS)) {
+                try {
+                    AnnotationScanner scanner = AnnotationScanner.scan(new ByteArrayInputStream(archive.read(entry)));
+                    if (! scanner.getAnnotations().isEmpty()) {
+                        annotations.put(scanner.getClassName(), scanner.getAnnotations());
+                    }
+                } catch (IOException e) {
+                    log.warn("Cannot scan {} in {}: {}", entry, archive, e);
+                }
+            }
+        }
+        log.debug("{} scanned, {} annotated classes", archive, annotations.size());
+        return new AnnotationIndex(hash, annotations);
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Classes having at least one runtime visible annotation.
+     */
+    public Set<String> getClasses() {
+        return unmodifiableSet(annotations.keySet());
+    }
+
+    public Collection<String> getAnnotations(String className) {
+        Collection<String> types = annotations.get(className);
+        return types == null ?
+                Collections.<String>emptySet() :
+                unmodifiableCollection(types);
+    }
+
+    public Collection<String> annotatedWith(String annotation) {
+        Collection<String> classes = new ArrayList<>();
+        for (Map.Entry<String,Collection<String>> e: annotations.entrySet()) {
+            if (e.getValue().contains(annotation)) {
+                classes.add(e.getKey());
+            }
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,173 @@
+package ua.atamurius.modulo.activator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Reads class level runtime visible annotations straight from class file bytes,
+ * without loading the class.
+ * Inherited annotations are not reported since super classes are not examined.
+ */
+class AnnotationScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+
+    private final DataInputStream in;
+    private String[] strings;
+    private int[] classes;
+
+    private String className;
+    private final Collection<String> annotations = new ArrayList<>();
+
+    private AnnotationScanner(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * Scans class file, returned scanner provides class name and its annotation types.
+     */
+    public static AnnotationScanner scan(InputStream classFile) throws IOException {
+        AnnotationScanner scanner = new AnnotationScanner(classFile);
+        scanner.read();
+        return scanner;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public Collection<String> getAnnotations() {
+        return annotations;
+    }
+
+    private void read() throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+        readConstantPool();
+        in.readUnsignedShort(); // access flags
+        className = toClassName(strings[classes[in.readUnsignedShort()]]);
+        in.readUnsignedShort(); // super class
+        skip(2 * in.readUnsignedShort()); // interfaces
+        skipMembers(); // fields
+        skipMembers(); // methods
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            String name = strings[in.readUnsignedShort()];
+            int length = in.readInt();
+            if (RUNTIME_VISIBLE_ANNOTATIONS.equals(name)) {
+                for (int n = in.readUnsignedShort(); n > 0; n--) {
+                    annotations.add(readAnnotation());
+                }
+            }
+            else {
+                skip(length);
+            }
+        }
+    }
+
+    private void readConstantPool() throws IOException {
+        int count = in.readUnsignedShort();
+        strings = new String[count];
+        classes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    strings[i] = in.readUTF();
+                    break;
+                case 7: // Class
+                    classes[i] = in.readUnsignedShort();
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    skip(2);
+                    break;
+                case 15: // MethodHandle
+                    skip(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    skip(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    skip(8);
+                    i++; // takes two entries
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag "+ tag);
+            }
+        }
+    }
+
+    private void skipMembers() throws IOException {
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            skip(6); // access flags, name, descriptor
+            skipAttributes();
+        }
+    }
+
+    private void skipAttributes() throws IOException {
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            skip(2);
+            skip(in.readInt());
+        }
+    }
+
+    private String readAnnotation() throws IOException {
+        String type = strings[in.readUnsignedShort()];
+        for (int pairs = in.readUnsignedShort(); pairs > 0; pairs--) {
+            skip(2); // element name
+            skipElementValue();
+        }
+        return toClassName(type.substring(1, type.length() - 1)); // Lpackage/Type;
+    }
+
+    private void skipElementValue() throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case 'e':
+                skip(4);
+                break;
+            case '@':
+                readAnnotation();
+                break;
+            case '[':
+                for (int count = in.readUnsignedShort(); count > 0; count--) {
+                    skipElementValue();
+                }
+                break;
+            default: // constants and classes
+                skip(2);
+        }
+    }
+
+    private void skip(int bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = in.skipBytes(bytes);
+            if (skipped == 0) {
+                in.readByte(); // throws at the end of stream
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    private static String toClassName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+}
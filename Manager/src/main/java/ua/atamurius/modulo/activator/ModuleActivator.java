@@ -1,62 +1,494 @@
 package ua.atamurius.modulo.activator;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+import ua.atamurius.modulo.manager.LeakInspector;
 import ua.atamurius.modulo.manager.Module;
 import ua.atamurius.modulo.manager.ModuleStateListener;
+import ua.atamurius.modulo.manager.ModuleUsageListener;
+import ua.atamurius.modulo.manager.StartupSnapshot;
+import ua.atamurius.modulo.service.Service;
 
-import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.Manifest;
 
-import static ua.atamurius.modulo.fs.ModuleContentEnumerator.contentsOf;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * Activate module classes.
- * TODO activate active modules with recently loaded activators to avoid load ordering
+ * Only classes annotated with annotations which have registered activators are loaded,
+ * annotations are taken from {@link AnnotationIndex}.
+ * When new activator is registered, already active modules are activated for it as well,
+ * so modules can be activated in any order.
+ * <p>
+ * In lazy mode (see {@code ModuleActivator.LAZY}) module is activated in background
+ * when manager resolves its first class (activator has to be registered as
+ * {@link ModuleUsageListener} as well) or by explicit {@link #activate(Module)}.
+ * Modules with {@code Modulo-Activation: eager} manifest attribute are activated eagerly.
+ * Lazy mode does not scan modules to decide it, so modules defining activators or {@link Service services}
+ * (which are looked up by interface, so their classes are not resolved before activation)
+ * are activated eagerly only if their index is already known (from {@link StartupSnapshot} or previous scan),
+ * otherwise they have to declare eager activation.
+ * <p>
+ * With {@link StartupSnapshot} (see {@link #restore(StartupSnapshot)}) unchanged modules
+ * are not scanned, and classes activated last time are loaded in the same order.
  */
-public class ModuleActivator implements ModuleStateListener {
+public class ModuleActivator implements ModuleStateListener, ModuleUsageListener, LeakInspector {
 
-    private static final String CLASS = ".class";
-    private final ActivatorRepository activators = new ActivatorRepository();
+    private static final Logger log = LoggerFactory.getLogger(ModuleActivator.class);
 
-    private final Map<Module,Set<Class<?>>> activated = new HashMap<Module,Set<Class<?>>>() {
+    private static final boolean LAZY = Boolean.getBoolean(ModuleActivator.class.getName() +".LAZY");
+
+    public static final String ACTIVATION_ATTRIBUTE = "Modulo-Activation";
+    public static final String EAGER = "eager";
+
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private final boolean lazy;
+    private final ExecutorService executor;
+
+    /**
+     * Active modules waiting for the first use in lazy mode.
+     */
+    private final Set<Module> deferred = Collections.newSetFromMap(new ConcurrentHashMap<Module,Boolean>());
+
+    public ModuleActivator() {
+        this(LAZY);
+    }
+
+    public ModuleActivator(boolean lazy) {
+        this.lazy = lazy;
+        this.executor = lazy ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "ModuleActivator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    private final ActivatorRepository activators = new ActivatorRepository() {
+        @Override
+        public void register(Class<? extends Annotation> target, Activator<?> activator) {
+            super.register(target, activator);
+            activatePending(target);
+        }
+    };
+
+    private final ConcurrentMap<Module,Set<Class<?>>> activated = new ConcurrentHashMap<Module,Set<Class<?>>>() {
         @Override
         public Set<Class<?>> get(Object key) {
-            if (! this.containsKey(key)) {
-                this.put((Module) key, new HashSet<Class<?>>());
+            Set<Class<?>> classes = super.get(key);
+            if (classes == null) {
+                Set<Class<?>> created = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>,Boolean>());
+                classes = putIfAbsent((Module) key, created);
+                if (classes == null) {
+                    classes = created;
+                }
             }
-            return super.get(key);
+            return classes;
         }
     };
 
+    /**
+     * Activations of active modules, guarded by this.
+     */
+    private final Map<Module,ActivationTask> activations = new HashMap<>();
+
+    private final Map<Module,Long> activationTimes = new ConcurrentHashMap<>();
+
+    private volatile StartupSnapshot snapshot;
+
+    /**
+     * Takes annotation indexes and activation order of unchanged modules from snapshot.
+     */
+    public void restore(StartupSnapshot snapshot) {
+        for (StartupSnapshot.Record record: snapshot.getRecords()) {
+            if (record.getAnnotations() != null) {
+                AnnotationIndex.preload(new AnnotationIndex(record.getHash(), record.getAnnotations()));
+            }
+        }
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Stores annotation indexes and activated classes of activated modules to snapshot,
+     * should be called after {@link StartupSnapshot#capture(ua.atamurius.modulo.manager.ModuleManager)}.
+     */
+    public synchronized void capture(StartupSnapshot snapshot) {
+        for (ActivationTask task: activations.values()) {
+            StartupSnapshot.Record record = snapshot.get(task.index.getHash());
+            if (record != null) {
+                Map<String,Collection<String>> annotations = new HashMap<>();
+                for (String name: task.index.getClasses()) {
+                    annotations.put(name, new ArrayList<>(task.index.getAnnotations(name)));
+                }
+                record.setAnnotations(annotations);
+                record.setActivated(new ArrayList<>(task.activatedNames));
+            }
+        }
+    }
+
+    /**
+     * Repository of activators, used to register activators defined outside of modules.
+     */
+    public ActivatorRepository getRepository() {
+        return activators;
+    }
+
+    /**
+     * Activates current version of module, unless it is activated already.
+     */
     public void activate(Module module) {
-        for (String entry: contentsOf(module.getSource())) {
-            if (entry.endsWith(CLASS)) {
-                Class<?> cls = module.getLoader().lookup(toClassName(entry));
-                if (cls != null && activators.activate(cls)) {
-                    activated.get(module).add(cls);
+        activate(module, module.getVersion());
+    }
+
+    private void activate(Module module, int version) {
+        deferred.remove(module);
+        if (isActivated(module, version)) {
+            return;
+        }
+        ActivationTask task = new ActivationTask(module, version);
+        task.index();
+        task.load();
+        task.activate();
+    }
+
+    private synchronized boolean isActivated(Module module, int version) {
+        ActivationTask current = activations.get(module);
+        return current != null && current.version == version;
+    }
+
+    /**
+     * Defers activation of module in lazy mode unless module has to be activated eagerly.
+     */
+    private boolean defer(Module module) {
+        if (lazy && ! isEager(module)) {
+            deferred.add(module);
+            log.debug("Activation of {} is deferred", module);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isEager(Module module) {
+        ModuleArchive archive = module.getArchive();
+        try {
+            AnnotationIndex index = (archive != null) ? AnnotationIndex.cached(archive) : null;
+            if (index != null && ! index.annotatedWith(ActivatorFor.class.getName()).isEmpty()) {
+                return true; // activators are required by other modules
+            }
+            if (index != null && ! index.annotatedWith(Service.class.getName()).isEmpty()
+                    && activators.isRegistered(Service.class.getName())) {
+                return true; // services are registered by activation only
+            }
+            byte[] content = (archive != null) ? archive.read(MANIFEST) : null;
+            return content != null && EAGER.equalsIgnoreCase(
+                    new Manifest(new ByteArrayInputStream(content)).getMainAttributes().getValue(ACTIVATION_ATTRIBUTE));
+        } catch (IOException e) {
+            log.warn("Cannot read manifest of {}: {}", module, e);
+            return true;
+        } catch (IllegalStateException e) {
+            return false; // module is reloaded concurrently
+        }
+    }
+
+    /**
+     * Index of archive of loaded module version, module file may contain other version already.
+     */
+    private static AnnotationIndex indexOf(Module module) {
+        ModuleArchive archive = module.getArchive();
+        if (archive == null) {
+            throw new IllegalStateException(module +" is unloaded");
+        }
+        return AnnotationIndex.of(archive);
+    }
+
+    @Override
+    public void moduleUsed(final Module module) {
+        if (deferred.remove(module)) {
+            final int version = module.getVersion();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // newer version is deferred again until it is used
+                        if (module.isActive() && module.getVersion() == version) {
+                            activate(module, version);
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Cannot activate {}: {}", module, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean isCandidate(AnnotationIndex index, String className) {
+        for (String annotation: index.getAnnotations(className)) {
+            if (activators.isRegistered(annotation)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Activates classes of already activated modules for recently registered activator.
+     */
+    private synchronized void activatePending(Class<? extends Annotation> target) {
+        for (ActivationTask task: new ArrayList<>(activations.values())) {
+            if (task.module.isActive()) {
+                for (String name: task.index.annotatedWith(target.getName())) {
+                    if (task.processed.contains(name)) {
+                        Class<?> cls = task.module.getLoader().lookup(name);
+                        if (cls != null && activators.activate(cls, target)) {
+                            activated.get(task.module).add(cls);
+                            task.activatedNames.add(name);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Activates given modules in parallel, intended for startup before this activator
+     * is registered as module listener.
+     * Modules are indexed concurrently, then modules defining activators are loaded
+     * and activated, and after that the rest of modules.
+     * Loading classes lets manager discover dependencies between modules,
+     * so each module is activated after modules it depends on.
+     * In lazy mode only modules which has to be activated eagerly are activated.
+     */
+    public void activateAll(Collection<Module> modules) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            activateAll(modules, pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    public void activateAll(Collection<Module> modules, ForkJoinPool pool) {
+        final Map<Module,ActivationTask> tasks = new LinkedHashMap<>();
+        for (Module module: modules) {
+            if (module.isActive() && ! defer(module)) {
+                tasks.put(module, new ActivationTask(module));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(steps(tasks.values(), false));
+                Map<Module,ActivationTask> bootstrap = new LinkedHashMap<>();
+                Map<Module,ActivationTask> rest = new LinkedHashMap<>();
+                for (ActivationTask task: tasks.values()) {
+                    boolean definesActivators = ! task.index.annotatedWith(ActivatorFor.class.getName()).isEmpty();
+                    (definesActivators ? bootstrap : rest).put(task.module, task);
+                }
+                for (Map<Module,ActivationTask> stage: Arrays.asList(bootstrap, rest)) {
+                    invokeAll(steps(stage.values(), true));
+                    orderDependencies(stage);
+                    invokeAll(stage.values());
                 }
             }
+        });
+        for (ActivationTask task: tasks.values()) {
+            log.info("{} activated in {} ms (scan {} ms)", task.module,
+                    NANOSECONDS.toMillis(task.scanTime + task.activationTime),
+                    NANOSECONDS.toMillis(task.scanTime));
         }
     }
 
-    private String toClassName(String entry) {
-        return entry.substring(0, entry.length() - CLASS.length()).replaceAll(File.separator, ".");
+    private static Collection<RecursiveAction> steps(Collection<ActivationTask> tasks, final boolean load) {
+        Collection<RecursiveAction> steps = new ArrayList<>();
+        for (final ActivationTask task: tasks) {
+            steps.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    if (load) {
+                        task.load();
+                    }
+                    else {
+                        task.index();
+                    }
+                }
+            });
+        }
+        return steps;
+    }
+
+    /**
+     * Links each task to tasks of its dependencies, ignoring dependency cycles.
+     */
+    private void orderDependencies(Map<Module,ActivationTask> tasks) {
+        Set<Module> visited = new HashSet<>();
+        for (ActivationTask task: tasks.values()) {
+            orderDependencies(task, tasks, visited, new HashSet<Module>());
+        }
+    }
+
+    private void orderDependencies(ActivationTask task, Map<Module,ActivationTask> tasks,
+                                   Set<Module> visited, Set<Module> path) {
+        if (! visited.add(task.module)) {
+            return;
+        }
+        path.add(task.module);
+        for (Module dependency: task.module.getDependencies()) {
+            ActivationTask dependencyTask = tasks.get(dependency);
+            if (dependencyTask != null && ! path.contains(dependency)) {
+                orderDependencies(dependencyTask, tasks, visited, path);
+                task.dependencies.add(dependencyTask);
+            }
+        }
+        path.remove(task.module);
+    }
+
+    /**
+     * Wall-clock activation time of modules in milliseconds.
+     */
+    public Map<Module,Long> getActivationTimes() {
+        Map<Module,Long> times = new LinkedHashMap<>();
+        for (Map.Entry<Module,Long> e: activationTimes.entrySet()) {
+            times.put(e.getKey(), NANOSECONDS.toMillis(e.getValue()));
+        }
+        return times;
+    }
+
+    /**
+     * Module activation: indexing and loading of candidate classes can be done concurrently,
+     * while activators are called under activator lock.
+     */
+    private class ActivationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final Module module;
+        final int version;
+        final Collection<ActivationTask> dependencies = new ArrayList<>();
+        final Map<String,Class<?>> loaded = new HashMap<>();
+        final Set<String> processed = new HashSet<>();
+        final List<String> activatedNames = new ArrayList<>(); // in order of activation
+        AnnotationIndex index;
+        long scanTime;
+        long activationTime;
+
+        ActivationTask(Module module) {
+            this(module, module.getVersion());
+        }
+
+        ActivationTask(Module module, int version) {
+            this.module = module;
+            this.version = version;
+        }
+
+        void index() {
+            long start = System.nanoTime();
+            index = indexOf(module);
+            scanTime += System.nanoTime() - start;
+        }
+
+        /**
+         * Annotated classes, starting with classes activated last time in the same order.
+         */
+        Collection<String> classes() {
+            StartupSnapshot snapshot = ModuleActivator.this.snapshot;
+            StartupSnapshot.Record record = (snapshot != null) ? snapshot.get(index.getHash()) : null;
+            if (record == null || record.getActivated() == null) {
+                return index.getClasses();
+            }
+            Collection<String> classes = new LinkedHashSet<>(record.getActivated());
+            classes.addAll(index.getClasses());
+            return classes;
+        }
+
+        void load() {
+            long start = System.nanoTime();
+            for (String name: classes()) {
+                if (isCandidate(index, name)) {
+                    loaded.put(name, module.getLoader().lookup(name));
+                }
+            }
+            scanTime += System.nanoTime() - start;
+        }
+
+        @Override
+        protected void compute() {
+            for (ActivationTask dependency: dependencies) {
+                dependency.join();
+            }
+            activate();
+        }
+
+        void activate() {
+            long start = System.nanoTime();
+            synchronized (ModuleActivator.this) {
+                ActivationTask current = activations.get(module);
+                if (current != null && current.version == version || module.getVersion() != version) {
+                    return; // activated concurrently, or reloaded and next version is activated on its own
+                }
+                if (current != null) {
+                    deactivate(module);
+                }
+                activations.put(module, this);
+                for (String name: classes()) {
+                    processed.add(name);
+                    if (isCandidate(index, name)) {
+                        Class<?> cls = loaded.containsKey(name) ? loaded.get(name) : module.getLoader().lookup(name);
+                        if (cls != null && activators.activate(cls)) {
+                            activated.get(module).add(cls);
+                            activatedNames.add(name);
+                        }
+                    }
+                }
+                loaded.clear();
+            }
+            activationTime = System.nanoTime() - start;
+            activationTimes.put(module, scanTime + activationTime);
+        }
     }
 
-    public void deactivate(Module module) {
+    public synchronized void deactivate(Module module) {
+        deferred.remove(module);
         for (Class<?> cls : activated.get(module)) {
             activators.deactivate(cls);
         }
         activated.remove(module);
+        activations.remove(module);
+        activationTimes.remove(module);
+    }
+
+    @Override
+    public void findHolders(ClassLoader loader, Collection<String> holders) {
+        activators.findHolders(loader, holders);
+        for (Map.Entry<Module,Set<Class<?>>> e: activated.entrySet()) {
+            for (Class<?> cls: e.getValue()) {
+                if (cls.getClassLoader() == loader) {
+                    holders.add("class "+ cls.getName() +" activated for "+ e.getKey());
+                }
+            }
+        }
     }
 
     @Override
     public void stateChanged(Module module) {
         switch (module.getState()) {
             case ACTIVE:
-                activate(module);
+                if (isActivated(module, module.getVersion())) {
+                    break; // repeated or coalesced event of activated version
+                }
+                deactivate(module); // previous version, if module was reloaded without intermediate event
+                if (! defer(module)) {
+                    activate(module);
+                }
                 break;
             default:
                 deactivate(module);
@@ -0,0 +1,44 @@
+package ua.atamurius.modulo.fs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Module content hash, used to identify module versions regardless of file name and time.
+ */
+public class ContentHash {
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    public static String of(File module) {
+        try (InputStream in = new FileInputStream(module)) {
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+            byte[] buffer = new byte[8192];
+            for (int read; (read = in.read(buffer)) != -1; ) {
+                digest.update(buffer, 0, read);
+            }
+            return toHex(digest.digest());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read module file "+ module, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalError(ALGORITHM +" is not supported: "+ e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -1,74 +1,400 @@
 package ua.atamurius.modulo.fs;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ua.atamurius.modulo.manager.Module;
 import ua.atamurius.modulo.manager.ModuleManager;
+import ua.atamurius.modulo.manager.ModuleStateListener;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 /**
  * File system watcher.
  * Modules are supposed to be located in some directory as JAR files.
+ * Changes are picked up either by explicit {@link #update()} calls
+ * or, after {@link #start()}, by file system events.
+ * Module is reloaded only if its content hash is changed, so touched or rewritten
+ * with the same bytes JARs do not invalidate modules.
+ * Changed and removed modules found by single check are reloaded by one
+ * {@link ModuleManager#reload(Collection)} transaction.
+ * Modules which cannot be reloaded (their files are still being written) are checked again
+ * by next {@link #update()} or, after {@link #start()}, after {@code FileWatcher.DEBOUNCE_MILLIS}.
  */
 public class FileWatcher {
 
+    private static final Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+    private static final long DEBOUNCE_MILLIS =
+            Long.getLong(FileWatcher.class.getName() +".DEBOUNCE_MILLIS", 200);
+
     private final Collection<File> roots = new HashSet<>();
     private final Map<File,Module> modules = new HashMap<>();
     private final Map<File,Long> lastModified = new HashMap<>();
+    private final Map<File,String> hashes = new HashMap<>();
+    private final Set<File> changed = new LinkedHashSet<>();
     private final ModuleManager manager;
 
+    private WatchService watchService;
+    private final Map<WatchKey,Path> directories = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+    private final Set<File> pending = new LinkedHashSet<>(); // guarded by itself
+    private boolean rescanPending; // guarded by pending
+    private long pendingSince; // guarded by pending
+    private ScheduledFuture<?> flush; // guarded by pending
+    private final Set<Module> invalidated = new LinkedHashSet<>();
+
     public FileWatcher(ModuleManager manager) {
         this.manager = manager;
         for (Module module: manager.getModules()) {
             checkModule(module.getSource());
         }
+        manager.addModuleListener(new ModuleStateListener() {
+            @Override
+            public void stateChanged(Module module) {
+                if (module.getState() == Module.State.INVALIDATED) {
+                    synchronized (invalidated) {
+                        invalidated.add(module);
+                    }
+                    scheduleInvalidated(); // event can be delivered asynchronously, after refresh
+                }
+            }
+        });
     }
 
-    public void watch(File root) {
+    public synchronized void watch(File root) {
         if (! root.isDirectory())
             throw new IllegalArgumentException(root +" is not valid module directory");
         roots.add(root);
+        register(root);
         collect(root.listFiles());
     }
 
     private void collect(File[] files) {
         for (File file: files) {
-            if (file.isFile() && file.getName().toUpperCase().endsWith(".JAR")) {
+            if (isModule(file)) {
                 checkModule(file);
             }
             else if (file.isDirectory()) {
+                register(file);
                 collect(file.listFiles());
             }
         }
     }
 
-    public void update() {
+    private static boolean isModule(File file) {
+        return file.isFile() && file.getName().toUpperCase().endsWith(".JAR");
+    }
+
+    public synchronized void update() {
         // check for new and updated
         collect(roots.toArray(new File[roots.size()]));
         // check for removed
-        for (File file: modules.keySet()) {
-            if (! file.isFile()) {
-                modules.get(file).unload();
-                lastModified.put(file, 0L);
-            }
+        for (File root: roots) {
+            checkRemoved(root);
+        }
+        reloadChanged();
+        // update invalidated by other means
+        synchronized (invalidated) {
+            invalidated.clear();
         }
-        // update invalidated
         for (Module module: modules.values()) {
             if (module.getState() == Module.State.INVALIDATED) {
-                module.update();
+                updateModule(module);
+            }
+        }
+    }
+
+    /**
+     * Marks modules of removed file or directory as changed.
+     */
+    private void checkRemoved(File path) {
+        for (File file: modules.keySet()) {
+            if (file.toPath().startsWith(path.toPath()) && ! file.isFile() && lastModified.get(file) != 0L) {
+                changed.add(file);
+                lastModified.put(file, 0L);
+                hashes.remove(file);
             }
         }
     }
 
     private void checkModule(File file) {
         if (! modules.containsKey(file)) {
-            modules.put(file, new Module(manager, file));
+            Module module;
+            try {
+                module = new Module(manager, file);
+            } catch (RuntimeException e) {
+                // file is not recorded, so it is checked again on next change or update
+                log.warn("Cannot load module {}, it is probably being written: {}", file, e);
+                return;
+            }
+            modules.put(file, module);
             lastModified.put(file, file.lastModified());
+            ModuleArchive archive = module.getArchive();
+            hashes.put(file, archive != null ? archive.getHash() : null);
         }
         else {
             if (lastModified.get(file) != file.lastModified()) {
                 lastModified.put(file, file.lastModified());
-                modules.get(file).invalidate();
+                Module module = modules.get(file);
+                String hash = hashOf(file);
+                if (hash != null && hash.equals(hashes.get(file)) && module.getState() != Module.State.UNLOADED) {
+                    log.debug("{} content is not changed, reload is suppressed", module);
+                    manager.getMetrics().reloadSuppressed();
+                }
+                else {
+                    hashes.put(file, hash);
+                    changed.add(file);
+                }
+            }
+        }
+    }
+
+    private void reloadChanged() {
+        if (! changed.isEmpty()) {
+            Collection<File> files = new ArrayList<>(changed);
+            changed.clear();
+            for (File file: manager.reload(files)) {
+                retry(file);
+            }
+        }
+    }
+
+    private void updateModule(Module module) {
+        try {
+            module.update();
+        } catch (RuntimeException e) {
+            log.error("Cannot update {}: {}", module, e);
+            retry(module.getSource());
+        }
+    }
+
+    /**
+     * Forgets known state of file, so its module is reloaded by next check even if file is not changed since.
+     */
+    private void retry(File file) {
+        lastModified.put(file, -1L);
+        hashes.remove(file);
+        if (scheduler != null) {
+            schedule(file);
+        }
+    }
+
+    private static String hashOf(File file) {
+        try {
+            return ContentHash.of(file);
+        } catch (IllegalArgumentException e) {
+            log.debug("Cannot hash {}: {}", file, e);
+            return null; // is being changed, treated as changed
+        }
+    }
+
+    /**
+     * Starts listening for file system events in watched directories,
+     * so there is no need to call {@link #update()} anymore.
+     * Events are collected until watched directories stay quiet for {@code FileWatcher.DEBOUNCE_MILLIS} (200),
+     * then all changed modules are reloaded by single {@link ModuleManager#reload(Collection)},
+     * so deploy of several JARs reloads each affected module once.
+     */
+    public synchronized void start() throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "FileWatcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (File root: roots) {
+            registerTree(root);
+        }
+        Thread listener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen(watchService);
+            }
+        }, "FileWatcher events");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    public synchronized void stop() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            scheduler.shutdownNow();
+            directories.clear();
+            watchService = null;
+        }
+    }
+
+    private void registerTree(File dir) {
+        register(dir);
+        for (File file: dir.listFiles()) {
+            if (file.isDirectory()) {
+                registerTree(file);
+            }
+        }
+    }
+
+    private void register(File dir) {
+        if (watchService != null) {
+            try {
+                Path path = dir.toPath();
+                directories.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+            } catch (IOException e) {
+                log.error("Cannot watch directory {}: {}", dir, e);
+            }
+        }
+    }
+
+    private void listen(WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        log.warn("Events were lost in {}, rescanning", dir);
+                        schedule(null);
+                    }
+                    else if (dir != null) {
+                        File file = dir.resolve((Path) event.context()).toFile();
+                        if (event.kind() == ENTRY_CREATE && file.isDirectory()) {
+                            schedule(file);
+                        }
+                        else if (event.kind() == ENTRY_DELETE || file.getName().toUpperCase().endsWith(".JAR")) {
+                            schedule(file); // deleted file can be directory containing modules
+                        }
+                    }
+                }
+                if (! key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped listening for file system events");
+        }
+    }
+
+    /**
+     * Adds file to check (or requests full rescan for null) and postpones check of all pending files,
+     * unless they are pending for {@code FileWatcher.DEBOUNCE_MILLIS} * 10 already.
+     */
+    private void schedule(File file) {
+        synchronized (pending) {
+            if (file == null) {
+                rescanPending = true;
+            }
+            else {
+                pending.add(file);
+            }
+            long now = System.currentTimeMillis();
+            if (flush == null) {
+                pendingSince = now;
+            }
+            else if (now - pendingSince < DEBOUNCE_MILLIS * 10) {
+                flush.cancel(false);
+            }
+            else {
+                return; // pending files are checked soon
+            }
+            try {
+                flush = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, DEBOUNCE_MILLIS, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flush = null;
+                log.debug("Watcher is stopped, {} is ignored", file);
+            }
+        }
+    }
+
+    /**
+     * Checks all pending files and reloads changed modules as single transaction.
+     */
+    private void flush() {
+        Collection<File> files;
+        boolean rescan;
+        synchronized (pending) {
+            files = new ArrayList<>(pending);
+            pending.clear();
+            rescan = rescanPending;
+            rescanPending = false;
+            flush = null;
+        }
+        try {
+            if (rescan) {
+                update();
+            }
+            else {
+                refresh(files);
+            }
+        } catch (RuntimeException e) {
+            log.error("Cannot refresh {}: {}", files, e);
+        }
+    }
+
+    private synchronized void refresh(Collection<File> files) {
+        for (File file: files) {
+            try {
+                if (file.isDirectory()) {
+                    register(file);
+                    collect(file.listFiles());
+                }
+                else if (isModule(file)) {
+                    checkModule(file);
+                }
+                else if (! file.exists()) {
+                    checkRemoved(file);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Cannot check {}, other changes are applied: {}", file, e);
+            }
+        }
+        reloadChanged();
+        updateInvalidated();
+    }
+
+    private void scheduleInvalidated() {
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler != null) {
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (FileWatcher.this) {
+                            updateInvalidated();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("Watcher is stopped, invalidated modules are not updated");
+            }
+        }
+    }
+
+    private void updateInvalidated() {
+        Collection<Module> modules;
+        synchronized (invalidated) {
+            modules = new ArrayList<>(invalidated);
+            invalidated.clear();
+        }
+        for (Module module: modules) {
+            if (module.getState() == Module.State.INVALIDATED) {
+                updateModule(module);
             }
         }
     }
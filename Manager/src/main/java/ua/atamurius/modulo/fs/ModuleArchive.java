@@ -0,0 +1,464 @@
+package ua.atamurius.modulo.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.*;
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Module JAR accessor.
+ * JAR is copied to deleted temporary file, which is memory mapped, and its central directory is read once,
+ * entries are served from the mapping, so file descriptor is not kept open.
+ * Mapping of private copy cannot fault or change when module file is rewritten or truncated in place,
+ * so buffers of classes and resources stay valid as long as they are referenced.
+ * Archives are shared by file and modification time and reference counted,
+ * each {@link #open(File)} has to be paired with {@link #close()}, so each version of module file
+ * is copied once (archive opened to compare versions is reused by module update).
+ * Temporary space of a copy is reclaimed when its mapping and all buffers sliced from it are collected,
+ * not on {@link #close()}, so copies not yet reclaimed are limited by {@code ModuleArchive.COPY_SPACE_LIMIT}
+ * (512 MiB), over the limit JARs are copied to heap instead.
+ * Compressed classes are inflated once into memory mapped image (see {@link #getContent(String)}),
+ * so class bytes are never copied to heap.
+ */
+public class ModuleArchive implements AutoCloseable {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CLASS = ".class";
+    private static final String IMAGE_PREFIX = "modulo-image-";
+    private static final String COPY_PREFIX = "modulo-archive-";
+    private static final int COPY_ATTEMPTS = 3;
+    private static final long COPY_SPACE_LIMIT =
+            Long.getLong(ModuleArchive.class.getName() +".COPY_SPACE_LIMIT", 512L << 20);
+
+    private static final Map<File,ModuleArchive> archives = new HashMap<>();
+
+    /**
+     * Mapped copies which are not collected yet and their total size, guarded by archives.
+     */
+    private static final Set<Copy> copies = new HashSet<>();
+    private static final ReferenceQueue<ByteBuffer> collectedCopies = new ReferenceQueue<>();
+    private static long copySpace = 0;
+
+    private static class Copy extends PhantomReference<ByteBuffer> {
+        final long length;
+
+        Copy(ByteBuffer buffer, long length) {
+            super(buffer, collectedCopies);
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    private final long lastModified;
+    private final long length;
+    private volatile ByteBuffer buffer;
+    private final Map<String,Entry> entries = new LinkedHashMap<>();
+    private int references = 1;
+    private volatile String hash;
+    private volatile Image image;
+
+    private static class Entry {
+        final int method;
+        final long crc;
+        final int compressedSize;
+        final int size;
+        final int headerOffset;
+        int imageOffset = -1;
+
+        Entry(int method, long crc, int compressedSize, int size, int headerOffset) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    /**
+     * Opens archive, reusing already opened one if file was not modified since.
+     */
+    public static ModuleArchive open(File file) {
+        synchronized (archives) {
+            ModuleArchive archive = archives.get(file);
+            if (archive != null && archive.isCurrent()) {
+                archive.references++;
+                return archive;
+            }
+            try {
+                archive = new ModuleArchive(file);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot open module file "+ file, e);
+            }
+            archives.put(file, archive);
+            return archive;
+        }
+    }
+
+    private ModuleArchive(File file) throws IOException {
+        this.file = file;
+        long lastModified;
+        long length;
+        ByteBuffer copy;
+        int attempt = 0;
+        do {
+            if (++attempt > COPY_ATTEMPTS) {
+                throw new IOException(file +" is changed while being read");
+            }
+            lastModified = file.lastModified();
+            length = file.length();
+            copy = copy(file, length);
+        } while (file.lastModified() != lastModified || file.length() != length);
+        this.lastModified = lastModified;
+        this.length = length;
+        this.buffer = copy.order(ByteOrder.LITTLE_ENDIAN);
+        readCentralDirectory();
+    }
+
+    /**
+     * Maps copy of file content, file can be changed concurrently, so length is checked by caller.
+     * Called under archives lock.
+     */
+    private static ByteBuffer copy(File file, long length) throws IOException {
+        for (Reference<?> collected; (collected = collectedCopies.poll()) != null; ) {
+            if (copies.remove(collected)) {
+                copySpace -= ((Copy) collected).length;
+            }
+        }
+        if (copySpace + length > COPY_SPACE_LIMIT) {
+            return read(file, length);
+        }
+        File temp = File.createTempFile(COPY_PREFIX, ".jar");
+        try (FileChannel source = FileChannel.open(file.toPath(), READ);
+             FileChannel copy = FileChannel.open(temp.toPath(), READ, WRITE, TRUNCATE_EXISTING)) {
+            long copied = 0;
+            while (copied < length) {
+                long transferred = source.transferTo(copied, length - copied, copy);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of "+ file);
+                }
+                copied += transferred;
+            }
+            ByteBuffer mapped = copy.map(READ_ONLY, 0, length);
+            copies.add(new Copy(mapped, length));
+            copySpace += length;
+            return mapped;
+        } finally {
+            if (! temp.delete()) {
+                temp.deleteOnExit(); // mapped files cannot be deleted on some platforms
+            }
+        }
+    }
+
+    /**
+     * Copies file content to heap, when temporary space of copies is exhausted.
+     */
+    private static ByteBuffer read(File file, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(file +" is too large");
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) length);
+        try (FileChannel source = FileChannel.open(file.toPath(), READ)) {
+            while (content.hasRemaining()) {
+                if (source.read(content, content.position()) <= 0) {
+                    throw new IOException("Unexpected end of "+ file);
+                }
+            }
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    private boolean isCurrent() {
+        return references > 0 && file.lastModified() == lastModified && file.length() == length;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        ByteBuffer buffer = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int end = findEnd(buffer);
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        int offset = buffer.getInt(end + 16);
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(offset) != CENTRAL_SIGNATURE) {
+                throw new IOException("Invalid central directory of "+ file);
+            }
+            int method = buffer.getShort(offset + 10) & 0xFFFF;
+            long crc = buffer.getInt(offset + 16) & 0xFFFFFFFFL;
+            int compressedSize = buffer.getInt(offset + 20);
+            int size = buffer.getInt(offset + 24);
+            int nameLength = buffer.getShort(offset + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(offset + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(offset + 32) & 0xFFFF;
+            int headerOffset = buffer.getInt(offset + 42);
+            if (compressedSize < 0 || size < 0 || headerOffset < 0) {
+                throw new IOException("ZIP64 archives are not supported: "+ file);
+            }
+            byte[] name = new byte[nameLength];
+            buffer.position(offset + 46);
+            buffer.get(name);
+            entries.put(new String(name, UTF8), new Entry(method, crc, compressedSize, size, headerOffset));
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private int findEnd(ByteBuffer buffer) throws IOException {
+        int limit = (int) Math.max(0, length - END_SIZE - MAX_COMMENT);
+        for (int position = (int) length - END_SIZE; position >= limit; position--) {
+            if (buffer.getInt(position) == END_SIGNATURE) {
+                return position;
+            }
+        }
+        throw new IOException("Not a ZIP file: "+ file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Entry names in the order of central directory.
+     */
+    public Collection<String> getEntries() {
+        return unmodifiableCollection(entries.keySet());
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * CRC-32 of entry content or -1 if there is no such entry.
+     */
+    public long getCrc(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.crc;
+    }
+
+    /**
+     * Names of classes which are changed or removed in other version of archive,
+     * classes are compared by size and CRC-32 of their content.
+     */
+    public Set<String> changedClasses(ModuleArchive other) {
+        Set<String> classes = new HashSet<>();
+        for (Map.Entry<String,Entry> e: entries.entrySet()) {
+            String name = e.getKey();
+            if (name.endsWith(CLASS)) {
+                Entry entry = e.getValue();
+                Entry changed = other.entries.get(name);
+                if (changed == null || changed.crc != entry.crc || changed.size != entry.size) {
+                    classes.add(name.substring(0, name.length() - CLASS.length()).replace('/', '.'));
+                }
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Reads entry content, returns null if there is no such entry.
+     */
+    public byte[] read(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer data = data(entry);
+        byte[] content = new byte[entry.size];
+        switch (entry.method) {
+            case STORED:
+                data.get(content);
+                break;
+            case DEFLATED:
+                inflate(data, content, content.length);
+                break;
+            default:
+                throw new IOException("Unsupported compression method "+ entry.method +" of "+ name);
+        }
+        return content;
+    }
+
+    /**
+     * Read-only content of entry, returns null if there is no such entry.
+     * Stored entries are sliced from archive mapping, compressed classes from image,
+     * other compressed entries are inflated to heap.
+     */
+    public ByteBuffer getContent(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.method == STORED) {
+            return data(entry).slice();
+        }
+        if (entry.method == DEFLATED && name.endsWith(CLASS)) {
+            return getImage().slice(entry);
+        }
+        return ByteBuffer.wrap(read(name)).asReadOnlyBuffer();
+    }
+
+    private Image getImage() throws IOException {
+        Image image = this.image;
+        if (image == null) {
+            synchronized (this) {
+                image = this.image;
+                if (image == null) {
+                    this.image = image = new Image();
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Inflated content of all compressed classes, kept in deleted temporary file
+     * and mapped, so it does not occupy heap and can be paged out.
+     */
+    private class Image {
+
+        private final MappedByteBuffer content;
+
+        Image() throws IOException {
+            File temp = File.createTempFile(IMAGE_PREFIX, ".bin");
+            try (FileChannel channel = FileChannel.open(temp.toPath(), READ, WRITE, TRUNCATE_EXISTING)) {
+                int offset = 0;
+                byte[] buffer = new byte[0];
+                for (Map.Entry<String,Entry> e: entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (entry.method == DEFLATED && e.getKey().endsWith(CLASS)) {
+                        if (buffer.length < entry.size) {
+                            buffer = new byte[entry.size];
+                        }
+                        inflate(data(entry), buffer, entry.size);
+                        channel.write(ByteBuffer.wrap(buffer, 0, entry.size));
+                        entry.imageOffset = offset;
+                        offset += entry.size;
+                    }
+                }
+                content = channel.map(READ_ONLY, 0, offset);
+            } finally {
+                if (! temp.delete()) {
+                    temp.deleteOnExit(); // mapped files cannot be deleted on some platforms
+                }
+            }
+        }
+
+        ByteBuffer slice(Entry entry) {
+            ByteBuffer buffer = content.duplicate();
+            buffer.position(entry.imageOffset);
+            buffer.limit(entry.imageOffset + entry.size);
+            return buffer.slice().asReadOnlyBuffer();
+        }
+    }
+
+    private ByteBuffer data(Entry entry) {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new IllegalStateException(file +" is closed");
+        }
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int nameLength = buffer.getShort(entry.headerOffset + 26) & 0xFFFF;
+        int extraLength = buffer.getShort(entry.headerOffset + 28) & 0xFFFF;
+        int start = entry.headerOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        buffer.position(start);
+        buffer.limit(start + entry.compressedSize);
+        return buffer;
+    }
+
+    private static void inflate(ByteBuffer data, byte[] content, int size) throws IOException {
+        byte[] compressed = new byte[data.remaining()];
+        data.get(compressed);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int total = 0;
+            while (total < size) {
+                int inflated = inflater.inflate(content, total, size - total);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Unexpected end of compressed data");
+                }
+                total += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * SHA-1 hash of archive content, see {@link ContentHash}.
+     */
+    public String getHash() {
+        if (hash == null) {
+            ByteBuffer buffer = this.buffer;
+            if (buffer == null) {
+                throw new IllegalStateException(file +" is closed");
+            }
+            try {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                digest.update(buffer.duplicate());
+                hash = ContentHash.toHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new InternalError("SHA-1 is not supported: "+ e);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Adds reference to open archive, which has to be released by {@link #close()}.
+     */
+    public void retain() {
+        synchronized (archives) {
+            if (references == 0) {
+                throw new IllegalStateException(file +" is closed");
+            }
+            references++;
+        }
+    }
+
+    /**
+     * Releases archive, mapping is dropped when archive is not used anymore.
+     */
+    @Override
+    public void close() {
+        synchronized (archives) {
+            if (references > 0 && --references == 0) {
+                buffer = null;
+                image = null;
+                if (archives.get(file) == this) {
+                    archives.remove(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file +"@"+ lastModified;
+    }
+}
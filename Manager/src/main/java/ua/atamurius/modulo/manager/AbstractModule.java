@@ -3,6 +3,8 @@ package ua.atamurius.modulo.manager;
 import java.util.Collection;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import static java.util.Collections.unmodifiableCollection;
+
 /**
  * Common module operations.
  */
@@ -30,11 +32,23 @@ public abstract class AbstractModule {
         listeners.remove(listener);
     }
 
+    protected Collection<ModuleStateListener> getModuleListeners() {
+        return unmodifiableCollection(listeners);
+    }
+
     protected void triggerStateChange(Module module) {
         for (ModuleStateListener listener: listeners) {
+            long start = System.nanoTime();
             listener.stateChanged(module);
+            listenerCompleted(listener, System.nanoTime() - start);
         }
     }
 
+    /**
+     * Called after each listener has processed state change.
+     */
+    protected void listenerCompleted(ModuleStateListener listener, long nanos) {
+    }
+
     public abstract Loader getLoader();
 }
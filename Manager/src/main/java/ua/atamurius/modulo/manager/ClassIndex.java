@@ -0,0 +1,204 @@
+package ua.atamurius.modulo.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Index of class names to modules which define them.
+ * Module classes are indexed when module becomes ACTIVE and removed
+ * when it leaves that state, so class routing takes single lookup.
+ * If several active modules contain the same class, the one indexed first owns it.
+ * Other entries of modules are indexed as resources, which can be provided by several modules.
+ */
+class ClassIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ClassIndex.class);
+
+    private static final String CLASS = ".class";
+
+    private final Map<String,Module> owners = new ConcurrentHashMap<>();
+    private final Map<Module,Collection<String>> classes = new HashMap<>();
+    private final Map<String,Set<Module>> duplicates = new HashMap<>();
+    private final Map<String,List<Module>> resources = new ConcurrentHashMap<>();
+    private final Map<Module,Collection<String>> resourcesOf = new HashMap<>();
+
+    public Module get(String className) {
+        return owners.get(className);
+    }
+
+    public synchronized Collection<String> classesOf(Module module) {
+        Collection<String> names = classes.get(module);
+        return names == null ?
+                Collections.<String>emptySet() :
+                unmodifiableCollection(names);
+    }
+
+    public synchronized Collection<String> resourcesOf(Module module) {
+        Collection<String> names = resourcesOf.get(module);
+        return names == null ?
+                Collections.<String>emptySet() :
+                unmodifiableCollection(names);
+    }
+
+    /**
+     * Indexes module with class and resource names read from archive entries.
+     */
+    public synchronized void add(Module module) {
+        remove(module);
+        ModuleArchive archive = module.getArchive();
+        if (archive == null) {
+            return; // unloaded concurrently
+        }
+        Collection<String> classNames = new ArrayList<>();
+        Collection<String> resourceNames = new ArrayList<>();
+        for (String entry: archive.getEntries()) {
+            if (entry.endsWith(CLASS)) {
+                classNames.add(toClassName(entry));
+            }
+            else if (! entry.endsWith("/")) {
+                resourceNames.add(entry);
+            }
+        }
+        index(module, classNames, resourceNames);
+    }
+
+    /**
+     * Indexes module with known class and resource names, archive entries are not read.
+     */
+    public synchronized void add(Module module, Collection<String> classNames, Collection<String> resourceNames) {
+        remove(module);
+        if (module.getArchive() == null) {
+            return; // unloaded concurrently
+        }
+        index(module, classNames, resourceNames);
+    }
+
+    private void index(Module module, Collection<String> classNames, Collection<String> resourceNames) {
+        Collection<String> names = new ArrayList<>(classNames.size());
+        Map<Module,Integer> duplicated = new LinkedHashMap<>();
+        for (String name: classNames) {
+            index(module, name, names, duplicated);
+        }
+        classes.put(module, names);
+        for (Map.Entry<Module,Integer> e: duplicated.entrySet()) {
+            log.warn("{} classes of {} are duplicated in {}, classes of {} are used",
+                    e.getValue(), module, e.getKey(), e.getKey());
+        }
+        for (String name: resourceNames) {
+            indexResource(module, name);
+        }
+        resourcesOf.put(module, new ArrayList<>(resourceNames));
+        log.debug("{} indexed with {} classes and {} resources", module, names.size(), resourceNames.size());
+    }
+
+    /**
+     * Lists of modules are replaced on change, so they are read without locking.
+     */
+    private void indexResource(Module module, String name) {
+        List<Module> modules = resources.get(name);
+        List<Module> updated = (modules != null) ? new ArrayList<>(modules) : new ArrayList<Module>(1);
+        updated.add(module);
+        resources.put(name, updated);
+    }
+
+    private void removeResource(Module module, String name) {
+        List<Module> modules = resources.get(name);
+        if (modules != null) {
+            List<Module> updated = new ArrayList<>(modules);
+            updated.remove(module);
+            if (updated.isEmpty()) {
+                resources.remove(name);
+            }
+            else {
+                resources.put(name, updated);
+            }
+        }
+    }
+
+    /**
+     * Modules which contain resource in order of indexing, class files are owned by single module.
+     */
+    public List<Module> getResourceOwners(String name) {
+        if (name.endsWith(CLASS)) {
+            Module owner = owners.get(toClassName(name));
+            return (owner != null) ? Collections.singletonList(owner) : Collections.<Module>emptyList();
+        }
+        List<Module> modules = resources.get(name);
+        return (modules != null) ? unmodifiableList(modules) : Collections.<Module>emptyList();
+    }
+
+    private void index(Module module, String name, Collection<String> names, Map<Module,Integer> duplicated) {
+        names.add(name);
+        Module owner = owners.get(name);
+        if (owner == null) {
+            owners.put(name, module);
+        }
+        else {
+            addDuplicate(name, owner, module);
+            Integer count = duplicated.get(owner);
+            duplicated.put(owner, (count == null) ? 1 : count + 1);
+        }
+    }
+
+    private void addDuplicate(String name, Module owner, Module module) {
+        Set<Module> sources = duplicates.get(name);
+        if (sources == null) {
+            sources = new LinkedHashSet<>();
+            sources.add(owner);
+            duplicates.put(name, sources);
+        }
+        sources.add(module);
+        log.debug("Class {} is duplicated in {}, {} is used", name, sources, owner);
+    }
+
+    public synchronized void remove(Module module) {
+        Collection<String> resourceNames = resourcesOf.remove(module);
+        if (resourceNames != null) {
+            for (String name: resourceNames) {
+                removeResource(module, name);
+            }
+        }
+        Collection<String> names = classes.remove(module);
+        if (names == null) {
+            return;
+        }
+        for (String name: names) {
+            Set<Module> sources = duplicates.get(name);
+            if (sources != null) {
+                sources.remove(module);
+                if (owners.get(name).equals(module)) {
+                    owners.put(name, sources.iterator().next());
+                }
+                if (sources.size() < 2) {
+                    duplicates.remove(name);
+                }
+            }
+            else {
+                owners.remove(name);
+            }
+        }
+        log.debug("{} removed from index", module);
+    }
+
+    /**
+     * Classes which are defined by more than one active module.
+     */
+    public synchronized Map<String,Collection<Module>> getDuplicates() {
+        Map<String,Collection<Module>> result = new HashMap<>();
+        for (Map.Entry<String,Set<Module>> e: duplicates.entrySet()) {
+            result.put(e.getKey(), new ArrayList<>(e.getValue()));
+        }
+        return result;
+    }
+
+    private static String toClassName(String entry) {
+        return entry.substring(0, entry.length() - CLASS.length()).replace('/', '.');
+    }
+}
@@ -0,0 +1,246 @@
+package ua.atamurius.modulo.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Asynchronous dispatch of module state events to manager listeners,
+ * see {@link ModuleManager#setEventDispatcher(EventDispatcher)}.
+ * <p>
+ * Events of the same module are delivered one by one in order they were triggered,
+ * events of different modules are delivered concurrently by bounded pool of threads.
+ * Listeners get module itself, so they see its state at the moment of delivery.
+ * <p>
+ * When {@code maxPending} events are not yet delivered, threads triggering new events
+ * are blocked for at most {@code backpressureMillis} (event is never dropped).
+ * Listener running longer than {@code timeoutMillis} is logged and counted, see {@link #getTimeouts()}.
+ * It is interrupted only if {@code interrupt} is enabled: interruption closes any interruptible channel
+ * the listener thread is using at the moment, including {@link java.nio.channels.FileChannel} shared by other threads.
+ */
+public class EventDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(EventDispatcher.class);
+
+    private static final String PREFIX = EventDispatcher.class.getName();
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final int maxPending;
+    private final long backpressureMillis;
+    private final long timeoutMillis;
+    private final boolean interrupt;
+
+    /**
+     * Undelivered events of each module, guarded by this.
+     */
+    private final Map<Module,Deque<List<Runnable>>> queues = new HashMap<>();
+    private int pending = 0;
+
+    private final ThreadLocal<Boolean> worker = new ThreadLocal<>();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Dispatcher configured by system properties {@code EventDispatcher.THREADS} (number of CPUs),
+     * {@code EventDispatcher.MAX_PENDING} (1024), {@code EventDispatcher.BACKPRESSURE_MILLIS} (1000)
+     * {@code EventDispatcher.TIMEOUT_MILLIS} (30000, 0 disables timeout)
+     * and {@code EventDispatcher.INTERRUPT} (false).
+     */
+    public EventDispatcher() {
+        this(Integer.getInteger(PREFIX +".THREADS", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(PREFIX +".MAX_PENDING", 1024),
+                Long.getLong(PREFIX +".BACKPRESSURE_MILLIS", 1000),
+                Long.getLong(PREFIX +".TIMEOUT_MILLIS", 30000),
+                Boolean.getBoolean(PREFIX +".INTERRUPT"));
+    }
+
+    /**
+     * Dispatcher which never interrupts slow listeners.
+     */
+    public EventDispatcher(int threads, int maxPending, long backpressureMillis, long timeoutMillis) {
+        this(threads, maxPending, backpressureMillis, timeoutMillis, false);
+    }
+
+    public EventDispatcher(int threads, int maxPending, long backpressureMillis, long timeoutMillis, boolean interrupt) {
+        if (threads < 1 || maxPending < 1)
+            throw new IllegalArgumentException("At least one thread and pending event are required");
+        this.maxPending = maxPending;
+        this.backpressureMillis = backpressureMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.interrupt = interrupt;
+        this.executor = Executors.newFixedThreadPool(threads, threads("Module events"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(threads("Module events watchdog"));
+    }
+
+    private ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable task) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        worker.set(true);
+                        task.run();
+                    }
+                }, name +"-"+ count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Queues deliveries of module event, each delivery calls single listener.
+     */
+    public void dispatch(final Module module, List<Runnable> deliveries) {
+        synchronized (this) {
+            awaitCapacity();
+            pending++;
+            Deque<List<Runnable>> queue = queues.get(module);
+            if (queue != null) {
+                queue.add(deliveries); // module events are being delivered
+                return;
+            }
+            queue = new ArrayDeque<>();
+            queue.add(deliveries);
+            queues.put(module, queue);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(module);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Dispatcher is shut down, event of {} is dropped", module);
+            synchronized (this) {
+                pending -= queues.remove(module).size();
+                notifyAll();
+            }
+        }
+    }
+
+    private void awaitCapacity() {
+        if (pending < maxPending || worker.get() != null) {
+            return; // listeners triggering events are never blocked, as they hold the queue
+        }
+        long deadline = System.currentTimeMillis() + backpressureMillis;
+        try {
+            for (long left = backpressureMillis; pending >= maxPending && left > 0;
+                 left = deadline - System.currentTimeMillis()) {
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pending >= maxPending) {
+            log.warn("{} events are pending for more than {} ms", pending, backpressureMillis);
+        }
+    }
+
+    private void drain(Module module) {
+        while (true) {
+            List<Runnable> deliveries;
+            synchronized (this) {
+                deliveries = queues.get(module).peek();
+            }
+            for (Runnable delivery: deliveries) {
+                deliver(delivery);
+            }
+            synchronized (this) {
+                Deque<List<Runnable>> queue = queues.get(module);
+                queue.poll();
+                pending--;
+                notifyAll();
+                if (queue.isEmpty()) {
+                    queues.remove(module);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void deliver(final Runnable delivery) {
+        final Thread thread = Thread.currentThread();
+        final boolean[] done = { false };
+        ScheduledFuture<?> timeout = null;
+        if (timeoutMillis > 0) {
+            timeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (done) {
+                        if (! done[0]) {
+                            timeouts.incrementAndGet();
+                            if (interrupt) {
+                                log.warn("Listener {} takes more than {} ms, interrupting", delivery, timeoutMillis);
+                                thread.interrupt();
+                            }
+                            else {
+                                log.warn("Listener {} takes more than {} ms, events of its module are delayed",
+                                        delivery, timeoutMillis);
+                            }
+                        }
+                    }
+                }
+            }, timeoutMillis, MILLISECONDS);
+        }
+        try {
+            delivery.run();
+        } catch (RuntimeException | Error e) {
+            log.error("Listener {} failed: {}", delivery, e);
+        } finally {
+            if (timeout != null) {
+                synchronized (done) {
+                    done[0] = true;
+                }
+                timeout.cancel(false);
+                if (interrupt) {
+                    Thread.interrupted(); // listener was interrupted
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all triggered events are delivered.
+     *
+     * @return false if events are still pending after timeout
+     */
+    public synchronized boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (long left = unit.toNanos(timeout); pending > 0; left = deadline - System.nanoTime()) {
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Number of listeners which were running longer than timeout.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Stops delivery threads after pending events are delivered.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        watchdog.shutdown();
+    }
+}
@@ -0,0 +1,15 @@
+package ua.atamurius.modulo.manager;
+
+import java.util.Collection;
+
+/**
+ * Finds references to loader of previous module version, which was not collected in time,
+ * see {@link RetiredLoaders#addInspector(LeakInspector)}.
+ */
+public interface LeakInspector {
+
+    /**
+     * Adds description of each object, which holds given loader or its classes.
+     */
+    void findHolders(ClassLoader loader, Collection<String> holders);
+}
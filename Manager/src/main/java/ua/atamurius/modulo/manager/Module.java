@@ -2,12 +2,27 @@ package ua.atamurius.modulo.manager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.Manifest;
 
 import static java.lang.Math.max;
 import static java.lang.String.format;
@@ -24,24 +39,63 @@ import static ua.atamurius.modulo.manager.Module.State.UNLOADED;
  * - Module becomes INVALIDATED and invalidates dependent modules
  * - Module becomes UNLOADED and dependent modules became FROZEN
  * - Module is updated and clears dependencies
+ * Dependent modules are changed by {@link ModuleGraph}, which handles dependency cycles as single module.
+ * When module file is changed ({@link #changedClasses()}), dependent modules are invalidated
+ * only if they have used changed or removed classes (or are in dependency cycle with it),
+ * other dependents keep importing classes of previous version until they are reloaded themselves.
+ * Previous version is read from private copy of module file (see {@link ModuleArchive}),
+ * so it stays intact when module file is rewritten in place.
+ * Module JAR is accessed through {@link ModuleArchive}, which is released on update and unload,
+ * loader of previous version is closed by {@link RetiredLoaders} when it is not used anymore.
+ * State transitions are atomic and dependencies are kept in concurrent structures,
+ * so module can be used by class loading threads while it is being reloaded.
  */
 public class Module extends AbstractModule {
 
     private static final Logger log = LoggerFactory.getLogger(Module.class);
 
-    private final Map<Module,Set<String>> dependencies = new HashMap<>();
+    private final ConcurrentMap<Module,Set<String>> dependencies = new ConcurrentHashMap<>();
 
     private static final boolean COLLECT_CLASSES =
             ! "false".equalsIgnoreCase(System.getProperty(Module.class.getName() +".COLLECT_CLASSES"));
 
+    private static final boolean CLASS_DIFF = COLLECT_CLASSES &&
+            ! "false".equalsIgnoreCase(System.getProperty(Module.class.getName() +".CLASS_DIFF"));
+
     public enum State { FROZEN, ACTIVE, INVALIDATED, UNLOADED }
 
-    private State state = UNLOADED;
-    private int version = 0;
-    private File file;
-    private ModuleManager parent;
-    private Loader loader;
+    private final AtomicReference<State> state = new AtomicReference<>(UNLOADED);
+    private volatile int version = 0;
+    private final File file;
+    private final ModuleManager parent;
+    private volatile Loader loader = UNLOADED_LOADER;
+    private volatile ModuleArchive archive;
+    private volatile Set<String> changedClasses; // null if whole module is changed
+    private ModuleArchive pending; // archive changed classes were taken from, used by next update
+    private volatile boolean eventsSuspended;
+    private volatile boolean eventPending;
+    private final AtomicBoolean used = new AtomicBoolean();
+
+
+    /**
+     * Loader of unloaded module, so loader of previous version is not held.
+     */
+    private static final Loader UNLOADED_LOADER = new Loader() {
+        @Override
+        public Class<?> lookup(String className) {
+            return null;
+        }
 
+        @Override
+        public boolean isSourceOf(String className) {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "Unloaded module loader";
+        }
+    };
 
     public Module(ModuleManager manager, File file) {
         requireNonNull(file);
@@ -55,48 +109,38 @@ public class Module extends AbstractModule {
         return file;
     }
 
+    /**
+     * Archive of current module version, null if module is unloaded.
+     */
+    public ModuleArchive getArchive() {
+        return archive;
+    }
+
     public Collection<Module> getDependencies() {
         return unmodifiableCollection(dependencies.keySet());
     }
 
     public Collection<String> getDependencyClasses(Module module) {
-        return dependencies.containsKey(module) ?
-                unmodifiableCollection(dependencies.get(module)) :
+        Set<String> classes = dependencies.get(module);
+        return classes != null ?
+                unmodifiableCollection(classes) :
                 Collections.<String>emptySet();
     }
 
-    private final ModuleStateListener dependencyListener = new ModuleStateListener() {
-        @Override
-        public void stateChanged(Module module) {
-            switch (module.getState()) {
-                case INVALIDATED:
-                    if (state == FROZEN)
-                        evaluateState();
-                    else
-                        invalidate();
-                    break;
-                case UNLOADED:
-                    setState(FROZEN);
-                    break;
-            }
-        }
-    };
-
-    private void evaluateState() {
-        if (state == UNLOADED) {
-            return; // nothing can be changed
+    /**
+     * Checks if this module has used any of given classes of dependency, null means all classes.
+     */
+    boolean usesClasses(Module module, Set<String> changed) {
+        Set<String> used = dependencies.get(module);
+        if (changed == null || used == null || used.isEmpty()) {
+            return true;
         }
-        Set<State> deps = new HashSet<>();
-        for (Module dep: dependencies.keySet()) {
-            deps.add(dep.getState());
-        }
-        if (deps.contains(UNLOADED) || deps.contains(FROZEN)) {
-            setState(FROZEN); // some dependencies are missing
-        }
-        else if (deps.contains(INVALIDATED) || state == FROZEN) {
-            setState(INVALIDATED);
+        for (String name: used) {
+            if (changed.contains(name)) {
+                return true;
+            }
         }
-        // TODO circular dependencies
+        return false;
     }
 
     @Override
@@ -104,23 +148,55 @@ public class Module extends AbstractModule {
         return loader;
     }
 
+    /**
+     * URL of resource of current module version, null if there is no such resource.
+     */
+    URL findResource(String name) {
+        Loader current = loader;
+        return (current instanceof ModuleLoader) ? ((ModuleLoader) current).findResource(name) : null;
+    }
+
     public boolean isActive() {
-        return state == State.ACTIVE;
+        return state.get() == State.ACTIVE;
     }
 
     public void addDependency(Module module, String requestedClass) {
-        if (! dependencies.containsKey(module)) {
-            dependencies.put(module, new HashSet<String>());
-            module.addModuleListener(dependencyListener);
+        Set<String> classes = dependencies.get(module);
+        if (classes == null) {
+            Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+            classes = dependencies.putIfAbsent(module, created);
+            if (classes == null) {
+                classes = created;
+                parent.getGraph().add(this, module);
+            }
         }
         if (COLLECT_CLASSES) {
-            dependencies.get(module).add(requestedClass);
+            classes.add(requestedClass);
         }
         log.debug("{} depends on {} through {}", this, module, requestedClass);
     }
 
-    public void unload() {
-        setState(UNLOADED);
+    public synchronized void unload() {
+        if (setState(UNLOADED)) {
+            parent.getGraph().propagate(this);
+        }
+        retireLoader();
+        loader = UNLOADED_LOADER;
+        ModuleArchive previous = archive;
+        archive = null;
+        if (previous != null) {
+            previous.close();
+        }
+        if (pending != null) {
+            pending.close();
+            pending = null;
+        }
+    }
+
+    private void retireLoader() {
+        if (loader instanceof ModuleLoader) {
+            parent.getRetiredLoaders().retire(this, version, (ModuleLoader) loader);
+        }
     }
 
     public String getName() {
@@ -128,46 +204,203 @@ public class Module extends AbstractModule {
     }
 
     public State getState() {
-        return state;
+        return state.get();
+    }
+
+
+    private boolean setState(State state) {
+        if (this.state.getAndSet(state) != state) {
+            stateChanged();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Changes state only if it was not changed concurrently.
+     */
+    private boolean changeState(State expected, State state) {
+        if (expected != state && this.state.compareAndSet(expected, state)) {
+            stateChanged();
+            return true;
+        }
+        return false;
     }
 
+    private void stateChanged() {
+        log.debug("{} state changed", this);
+        if (eventsSuspended) {
+            eventPending = true;
+        }
+        else {
+            triggerStateChange(this);
+        }
+    }
+
+    /**
+     * State changes are not published until {@link #resumeEvents()}.
+     */
+    void suspendEvents() {
+        eventsSuspended = true;
+    }
 
-    private void setState(State state) {
-        if (this.state != state) {
-            this.state = state;
-            log.debug("{} state changed", this);
+    /**
+     * Publishes single event for all state changes since {@link #suspendEvents()}.
+     */
+    void resumeEvents() {
+        eventsSuspended = false;
+        if (eventPending) {
+            eventPending = false;
             triggerStateChange(this);
         }
     }
 
-    public void update() {
+    /**
+     * Marks current version as used by other modules, returns true only for the first time.
+     */
+    boolean markUsed() {
+        return ! used.get() && used.compareAndSet(false, true);
+    }
+
+    void freeze() {
+        if (markFrozen()) {
+            parent.getGraph().propagate(this);
+        }
+    }
+
+    /**
+     * Freezes module unless it is frozen or unloaded, without changing dependent modules.
+     */
+    boolean markFrozen() {
+        State current;
+        do {
+            current = state.get();
+            if (current == FROZEN || current == UNLOADED) {
+                return false;
+            }
+        } while (! changeState(current, FROZEN));
+        return true;
+    }
+
+    /**
+     * Invalidates frozen module, without changing dependent modules.
+     */
+    boolean markThawed() {
+        changedClasses = null;
+        return changeState(FROZEN, INVALIDATED);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public synchronized void update() {
+        long start = System.nanoTime();
         if (! file.isFile()) {
             unload();
         }
         else {
-            loader = new ModuleLoader();
+            ModuleArchive previous = archive;
+            // archive which dependents were checked against, even if file was changed since
+            archive = (pending != null) ? pending : ModuleArchive.open(file);
+            pending = null;
+            retireLoader();
+            loader = new ModuleLoader(this, archive);
             version++;
             clearDependencies();
+            changedClasses = null;
+            used.set(false);
             setState(State.ACTIVE);
+            if (previous != null) {
+                previous.close();
+            }
         }
+        parent.getMetrics().updated(System.nanoTime() - start);
     }
 
     private void clearDependencies() {
         for (Module module: dependencies.keySet()) {
-            module.removeModuleListener(dependencyListener);
+            parent.getGraph().remove(this, module);
+            dependencies.remove(module);
         }
-        dependencies.clear();
     }
 
     public void invalidate() {
-        if (getState() != FROZEN) {
-            setState(INVALIDATED);
+        invalidate(null);
+    }
+
+    /**
+     * Classes changed in module file, so dependent modules are invalidated only if they have used
+     * changed or removed classes, null if whole module is treated as changed
+     * ({@code Module.CLASS_DIFF} or {@code Module.COLLECT_CLASSES} is disabled, or file cannot be compared).
+     */
+    Set<String> changedClasses() {
+        return CLASS_DIFF ? diff() : null;
+    }
+
+    /**
+     * Compares current archive with module file, returns names of changed classes
+     * or null if they cannot be compared, new archive is used by next {@link #update()}.
+     */
+    synchronized Set<String> diff() {
+        if (archive == null) {
+            return null;
+        }
+        ModuleArchive next;
+        try {
+            next = ModuleArchive.open(file);
+        } catch (IllegalArgumentException e) {
+            log.debug("Cannot compare {} with its file: {}", this, e);
+            return null;
         }
+        if (pending != null) {
+            pending.close();
+        }
+        pending = next;
+        Set<String> changed = archive.changedClasses(next);
+        log.debug("{} has {} changed classes", this, changed.size());
+        return changed;
+    }
+
+    void invalidate(Set<String> changed) {
+        long start = parent.getMetrics().invalidationStarted();
+        boolean invalidated = false;
+        try {
+            invalidated = markInvalidated(changed);
+            if (invalidated) {
+                parent.getGraph().propagate(this);
+            }
+        }
+        finally {
+            parent.getMetrics().invalidationFinished(start, invalidated);
+        }
+    }
+
+    /**
+     * Invalidates module unless it is frozen or invalidated, without changing dependent modules.
+     */
+    boolean markInvalidated(Set<String> changed) {
+        State current;
+        do {
+            current = state.get();
+            if (current == FROZEN || current == INVALIDATED) {
+                return false;
+            }
+            changedClasses = changed;
+        } while (! changeState(current, INVALIDATED));
+        return true;
+    }
+
+    /**
+     * Classes changed by invalidation, null if whole module is changed.
+     */
+    Set<String> getChangedClasses() {
+        return changedClasses;
     }
 
     @Override
     public String toString() {
-        return format("%s:%d(%s)", getName(), version, state);
+        return format("%s:%d(%s)", getName(), version, state.get());
     }
 
     @Override
@@ -188,22 +421,142 @@ public class Module extends AbstractModule {
         }
     }
 
-    private class ModuleLoader extends URLClassLoader implements Loader {
+    /**
+     * Module class loader, classes are defined directly from module archive buffers
+     * without copying them to heap, resources are still served by URL class loader.
+     * Loader keeps its archive until it is closed, so loader of previous version
+     * still defines classes of that version for dependents bound to it,
+     * archive is a private copy, so they are not changed by later writes to module file.
+     * Loader is parallel capable, so classes are loaded under per class name locks.
+     */
+    private static class ModuleLoader extends URLClassLoader implements Loader {
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+        private final Module module;
+        private final int version;
+        private final ModuleArchive archive;
+        private final CodeSource codeSource;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final ArchiveHandler handler;
+        private Manifest manifest;
+
+        ModuleLoader(Module module, ModuleArchive archive) {
+            super(new URL[] { module.getModuleURL() }, module.parent.getLoader(module));
+            this.module = module;
+            this.version = module.version;
+            this.archive = archive;
+            this.codeSource = new CodeSource(module.getModuleURL(), (CodeSigner[]) null);
+            this.handler = new ArchiveHandler(archive);
+            archive.retain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    super.close();
+                } finally {
+                    archive.close();
+                }
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            ByteBuffer bytes;
+            try {
+                bytes = archive.getContent(name.replace('.', '/') + ".class");
+            } catch (IllegalStateException e) {
+                // loader is closed, module file may contain other version already
+                throw new ClassNotFoundException(name, e);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            definePackageOf(name);
+            Class<?> cls = defineClass(name, bytes, codeSource);
+            module.parent.getMetrics().classLoaded(module);
+            return cls;
+        }
+
+        @SuppressWarnings("deprecation") // getDefinedPackage is available since Java 9, modules target Java 7
+        private void definePackageOf(String className) {
+            int dot = className.lastIndexOf('.');
+            if (dot > 0) {
+                String name = className.substring(0, dot);
+                if (getPackage(name) == null) {
+                    try {
+                        Manifest manifest = getManifest();
+                        if (manifest != null) {
+                            definePackage(name, manifest, codeSource.getLocation());
+                        }
+                        else {
+                            definePackage(name, null, null, null, null, null, null, null);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // package was defined concurrently
+                    }
+                }
+            }
+        }
 
-        ModuleLoader() {
-            super(new URL[] { getModuleURL() }, parent.getLoader(Module.this));
+        private synchronized Manifest getManifest() {
+            if (manifest == null) {
+                try {
+                    byte[] content = archive.read(MANIFEST);
+                    manifest = (content != null) ? new Manifest(new ByteArrayInputStream(content)) : null;
+                } catch (IOException e) {
+                    log.warn("Cannot read manifest of {}: {}", module, e);
+                }
+            }
+            return manifest;
         }
 
-        final int version = Module.this.version;
+        /**
+         * URL of resource, which is read from archive of this loader instead of module file,
+         * so it keeps serving this version when module file is replaced.
+         */
+        @Override
+        public URL findResource(String name) {
+            if (! archive.contains(name)) {
+                return null;
+            }
+            try {
+                return new URL("jar", null, -1, codeSource.getLocation() +"!/"+ name, handler);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public Enumeration<URL> findResources(String name) {
+            URL url = findResource(name);
+            return (url != null)
+                    ? Collections.enumeration(Collections.singletonList(url))
+                    : Collections.<URL>emptyEnumeration();
+        }
 
         @Override
         public Class<?> lookup(String className) {
             try {
-                if (! isActive()) {
-                    throw new IllegalStateException(Module.this.toString());
+                if (! module.isActive()) {
+                    throw new IllegalStateException(module.toString());
+                }
+                Class<?> cls = findLoadedClass(className); // loaded classes are found without locking
+                if (cls != null) {
+                    return cls;
+                }
+                synchronized (getClassLoadingLock(className)) {
+                    cls = findLoadedClass(className);
+                    return (cls != null) ? cls : findClass(className);
                 }
-                Class<?> cls = findLoadedClass(className);
-                return (cls != null) ? cls : findClass(className);
             } catch (ClassNotFoundException e) {
                 return null;
             }
@@ -216,7 +569,82 @@ public class Module extends AbstractModule {
 
         @Override
         public String toString() {
-            return format("%s@Loader:%d", getName(), version);
+            return format("%s@Loader:%d", module.getName(), version);
+        }
+    }
+
+    /**
+     * Opens {@code jar:} URLs of module resources from archive.
+     */
+    private static class ArchiveHandler extends URLStreamHandler {
+        private final ModuleArchive archive;
+
+        ArchiveHandler(ModuleArchive archive) {
+            this.archive = archive;
+        }
+
+        @Override
+        protected URLConnection openConnection(final URL url) {
+            return new URLConnection(url) {
+                private ByteBuffer content;
+
+                @Override
+                public void connect() throws IOException {
+                    if (content == null) {
+                        String file = url.getFile();
+                        String name = file.substring(file.indexOf("!/") + 2);
+                        try {
+                            content = archive.getContent(name);
+                        } catch (IllegalStateException e) {
+                            throw new IOException("Module version is unloaded: "+ url, e);
+                        }
+                        if (content == null) {
+                            throw new FileNotFoundException(url.toString());
+                        }
+                        connected = true;
+                    }
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    try {
+                        connect();
+                        return content.remaining();
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    connect();
+                    final ByteBuffer buffer = content.duplicate();
+                    return new InputStream() {
+                        @Override
+                        public int read() {
+                            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+                        }
+
+                        @Override
+                        public int read(byte[] bytes, int offset, int length) {
+                            if (length == 0) {
+                                return 0;
+                            }
+                            if (! buffer.hasRemaining()) {
+                                return -1;
+                            }
+                            length = Math.min(length, buffer.remaining());
+                            buffer.get(bytes, offset, length);
+                            return length;
+                        }
+
+                        @Override
+                        public int available() {
+                            return buffer.remaining();
+                        }
+                    };
+                }
+            };
         }
     }
 }
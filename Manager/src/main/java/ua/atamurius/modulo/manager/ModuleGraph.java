@@ -0,0 +1,277 @@
+package ua.atamurius.modulo.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Collections.unmodifiableCollection;
+import static ua.atamurius.modulo.manager.Module.State.FROZEN;
+import static ua.atamurius.modulo.manager.Module.State.INVALIDATED;
+import static ua.atamurius.modulo.manager.Module.State.UNLOADED;
+
+/**
+ * Dependency graph of modules of manager.
+ * Dependencies are kept by modules (together with used classes), graph keeps dependents of each module,
+ * edges are added when module loads class of other module and removed when module is updated.
+ * Modules, which depend on each other (strongly connected components), form a cycle
+ * handled as single unit: they are invalidated, frozen and reloaded together.
+ * When module is invalidated, frozen or unloaded, states of modules depending on it
+ * are changed by {@link #propagate(Module)} in single pass in order of dependencies,
+ * so each affected module is visited once.
+ */
+public class ModuleGraph {
+
+    private static final Logger log = LoggerFactory.getLogger(ModuleGraph.class);
+
+    private final ModuleManager manager;
+
+    private final ConcurrentMap<Module,Set<Module>> dependents = new ConcurrentHashMap<>();
+
+    ModuleGraph(ModuleManager manager) {
+        this.manager = manager;
+    }
+
+    void add(Module dependent, Module dependency) {
+        Set<Module> modules = dependents.get(dependency);
+        if (modules == null) {
+            Set<Module> created = Collections.newSetFromMap(new ConcurrentHashMap<Module,Boolean>());
+            modules = dependents.putIfAbsent(dependency, created);
+            if (modules == null) {
+                modules = created;
+            }
+        }
+        modules.add(dependent);
+    }
+
+    void remove(Module dependent, Module dependency) {
+        Set<Module> modules = dependents.get(dependency);
+        if (modules != null) {
+            modules.remove(dependent);
+        }
+    }
+
+    /**
+     * Modules, which given module has loaded classes from.
+     */
+    public Collection<Module> getDependencies(Module module) {
+        return module.getDependencies();
+    }
+
+    /**
+     * Modules, which have loaded classes from given module.
+     */
+    public Collection<Module> getDependents(Module module) {
+        Set<Module> modules = dependents.get(module);
+        return (modules != null) ? unmodifiableCollection(modules) : Collections.<Module>emptySet();
+    }
+
+    /**
+     * Modules, which depend on given module directly or through other modules.
+     */
+    public Set<Module> getTransitiveDependents(Module module) {
+        return reachable(module, true);
+    }
+
+    /**
+     * Modules, which given module depends on directly or through other modules.
+     */
+    public Set<Module> getTransitiveDependencies(Module module) {
+        return reachable(module, false);
+    }
+
+    private Set<Module> reachable(Module module, boolean towardsDependents) {
+        Set<Module> reached = new LinkedHashSet<>();
+        Deque<Module> pending = new ArrayDeque<>();
+        pending.add(module);
+        while (! pending.isEmpty()) {
+            for (Module next: edges(pending.poll(), towardsDependents)) {
+                if (next != module && reached.add(next)) {
+                    pending.add(next);
+                }
+            }
+        }
+        return reached;
+    }
+
+    private Collection<Module> edges(Module module, boolean towardsDependents) {
+        return towardsDependents ? getDependents(module) : getDependencies(module);
+    }
+
+    /**
+     * Cycle containing given module, which is the only module of cycle if it does not depend on itself.
+     */
+    public Collection<Module> getCycle(Module module) {
+        Set<Module> dependencies = getTransitiveDependencies(module);
+        List<Module> cycle = new ArrayList<>();
+        cycle.add(module);
+        for (Module dependent: getTransitiveDependents(module)) {
+            if (dependent != module && dependencies.contains(dependent)) {
+                cycle.add(dependent);
+            }
+        }
+        return cycle;
+    }
+
+    /**
+     * Cycles of all registered modules, each one is listed after cycles it depends on.
+     */
+    public List<Collection<Module>> getCycles() {
+        return new Components(false, null).of(manager.getModules());
+    }
+
+    /**
+     * Given modules ordered so each one follows its dependencies,
+     * modules of the same cycle are adjacent.
+     */
+    public List<Module> order(Collection<Module> modules) {
+        List<Module> order = new ArrayList<>(modules.size());
+        for (Collection<Module> cycle: new Components(false, new HashSet<>(modules)).of(modules)) {
+            order.addAll(cycle);
+        }
+        return order;
+    }
+
+    /**
+     * Changes states of modules depending on given one after it was invalidated, frozen or unloaded.
+     * Dependent cycle is frozen if it depends on frozen or unloaded module,
+     * otherwise it is invalidated if it uses classes of invalidated module
+     * (only changed ones for given module, see {@link Module#changedClasses()}),
+     * cycle of given module is always invalidated with it.
+     * Frozen cycle is invalidated when it does not depend on frozen or unloaded modules anymore.
+     */
+    void propagate(Module source) {
+        Set<Module> invalidated = new HashSet<>();
+        Set<Module> missing = new HashSet<>();
+        Module.State state = source.getState();
+        if (state == INVALIDATED) {
+            invalidated.add(source);
+        }
+        else if (state == FROZEN || state == UNLOADED) {
+            missing.add(source);
+        }
+        else {
+            return;
+        }
+        Set<String> changed = source.getChangedClasses();
+        List<Collection<Module>> cycles = new Components(true, null).of(Collections.singleton(source));
+        // components are found in reverse order of dependents
+        for (int i = cycles.size() - 1; i >= 0; i--) {
+            Collection<Module> cycle = cycles.get(i);
+            boolean freeze = false;
+            boolean invalidate = false;
+            for (Module module: cycle) {
+                for (Module dependency: module.getDependencies()) {
+                    if (missing.contains(dependency)) {
+                        freeze = true;
+                    }
+                    else if (invalidated.contains(dependency)) {
+                        invalidate |= dependency != source || module.usesClasses(source, changed);
+                    }
+                }
+            }
+            // cycle cannot keep previous version of its own module, as it is linked with both versions then
+            invalidate |= cycle.contains(source) && cycle.size() > 1;
+            if (freeze || invalidate) {
+                for (Module module: cycle) {
+                    if (module != source) {
+                        update(module, freeze, invalidated, missing);
+                    }
+                }
+            }
+            else if (! cycle.contains(source)) {
+                log.debug("{} does not use classes changed in {}", cycle, source);
+            }
+        }
+    }
+
+    private static void update(Module module, boolean freeze, Set<Module> invalidated, Set<Module> missing) {
+        if (module.getState() == UNLOADED) {
+            return; // nothing can be changed
+        }
+        if (freeze) {
+            module.markFrozen();
+        }
+        else if (module.getState() == FROZEN) {
+            if (! hasMissing(module) && module.markThawed()) {
+                invalidated.add(module);
+            }
+        }
+        else if (module.markInvalidated(null)) {
+            invalidated.add(module);
+        }
+        if (module.getState() == FROZEN) {
+            missing.add(module);
+        }
+    }
+
+    private static boolean hasMissing(Module module) {
+        for (Module dependency: module.getDependencies()) {
+            Module.State state = dependency.getState();
+            if (state == FROZEN || state == UNLOADED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strongly connected components found by Tarjan's algorithm,
+     * each component is listed after components reachable from it.
+     */
+    private class Components {
+        private final boolean towardsDependents;
+        private final Set<Module> within; // null for any module
+        private final Map<Module,Integer> index = new HashMap<>();
+        private final Map<Module,Integer> lowLink = new HashMap<>();
+        private final Deque<Module> stack = new ArrayDeque<>();
+        private final Set<Module> onStack = new HashSet<>();
+        private final List<Collection<Module>> components = new ArrayList<>();
+
+        Components(boolean towardsDependents, Set<Module> within) {
+            this.towardsDependents = towardsDependents;
+            this.within = within;
+        }
+
+        List<Collection<Module>> of(Collection<Module> roots) {
+            for (Module module: roots) {
+                if (! index.containsKey(module)) {
+                    visit(module);
+                }
+            }
+            return components;
+        }
+
+        private void visit(Module module) {
+            int number = index.size();
+            index.put(module, number);
+            lowLink.put(module, number);
+            stack.push(module);
+            onStack.add(module);
+            for (Module next: edges(module, towardsDependents)) {
+                if (within != null && ! within.contains(next)) {
+                    continue;
+                }
+                if (! index.containsKey(next)) {
+                    visit(next);
+                    lowLink.put(module, Math.min(lowLink.get(module), lowLink.get(next)));
+                }
+                else if (onStack.contains(next)) {
+                    lowLink.put(module, Math.min(lowLink.get(module), index.get(next)));
+                }
+            }
+            if (lowLink.get(module) == number) {
+                List<Module> component = new ArrayList<>();
+                Module member;
+                do {
+                    member = stack.pop();
+                    onStack.remove(member);
+                    component.add(member);
+                } while (member != module);
+                components.add(component);
+            }
+        }
+    }
+}
@@ -1,91 +1,675 @@
 package ua.atamurius.modulo.manager;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+import ua.atamurius.modulo.metrics.ManagerMetrics;
 import ua.atamurius.modulo.service.ServiceProxy;
+import ua.atamurius.modulo.service.ServiceRegistry;
+import ua.atamurius.modulo.service.ServiceScope;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
-import static java.util.Collections.unmodifiableCollection;
+import static java.util.Collections.unmodifiableList;
+import static ua.atamurius.modulo.manager.Module.State.FROZEN;
+import static ua.atamurius.modulo.manager.Module.State.UNLOADED;
 
 /**
  * Module manager.
+ * Registered modules are published as immutable snapshot, so lookups never lock.
  */
 public class ModuleManager extends AbstractModule {
 
-    private Collection<Module> modules = new ArrayList<Module>();
+    private static final Logger log = LoggerFactory.getLogger(ModuleManager.class);
+
+    private volatile List<Module> modules = Collections.emptyList();
+
+    private final ClassIndex index = new ClassIndex();
+
+    private final ManagerMetrics metrics = new ManagerMetrics();
+
+    private final ServiceRegistry services = new ServiceRegistry(this);
+
+    private final RetiredLoaders retiredLoaders = new RetiredLoaders(this);
+
+    private final ModuleGraph graph = new ModuleGraph(this);
+
+    private volatile StartupSnapshot snapshot;
+
+    private final ResourceCache resources = new ResourceCache();
+
+    private static final int MISSING_CLASSES_LIMIT =
+            Integer.getInteger(ModuleManager.class.getName() +".MISSING_CLASSES_LIMIT", 1024);
+
+    /**
+     * Names which are known to be absent in any active module and parent loader,
+     * checked without locking, cleared when it grows over {@code ModuleManager.MISSING_CLASSES_LIMIT} (1024).
+     */
+    private final Set<String> missingClasses = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    private void markMissing(String name) {
+        if (missingClasses.size() >= MISSING_CLASSES_LIMIT) {
+            missingClasses.clear(); // size is approximate under concurrent updates
+        }
+        missingClasses.add(name);
+    }
 
     public void register(Module module) {
-        modules.add(module);
+        synchronized (this) {
+            List<Module> registered = new ArrayList<>(modules);
+            registered.add(module);
+            modules = unmodifiableList(registered);
+        }
         module.addModuleListener(new ModuleStateListener() {
             @Override
             public void stateChanged(Module module) {
+                if (module.getState() == UNLOADED) {
+                    metrics.moduleUnloaded(module);
+                }
+                updateIndex(module);
+                resources.invalidate(module);
+                services.update(module);
                 triggerStateChange(module);
             }
         });
+        updateIndex(module);
+        restoreDependencies(module);
+        services.update(module);
         triggerStateChange(module);
     }
 
+    private void updateIndex(Module module) {
+        if (module.isActive()) {
+            StartupSnapshot snapshot = this.snapshot;
+            StartupSnapshot.Record record = (snapshot != null) ? snapshot.get(module) : null;
+            if (record != null) {
+                index.add(module, record.getClasses(), record.getResources());
+            }
+            else {
+                index.add(module);
+            }
+            for (String name: index.classesOf(module)) {
+                missingClasses.remove(name);
+            }
+        }
+        else {
+            index.remove(module);
+        }
+    }
+
+    /**
+     * Restores dependencies between registered module and other modules known by snapshot,
+     * so they are known before classes are loaded.
+     */
+    private void restoreDependencies(Module module) {
+        StartupSnapshot snapshot = this.snapshot;
+        if (snapshot == null || ! module.isActive()) {
+            return;
+        }
+        for (Module other: modules) {
+            if (other.isActive()) {
+                restoreDependency(snapshot, module, other);
+                restoreDependency(snapshot, other, module);
+            }
+        }
+    }
+
+    private static void restoreDependency(StartupSnapshot snapshot, Module dependent, Module dependency) {
+        StartupSnapshot.Record record = snapshot.get(dependent);
+        StartupSnapshot.Dependency known = (record != null) ? record.getDependencies().get(dependency.getName()) : null;
+        if (known != null && known.getHash().equals(StartupSnapshot.hashOf(dependency))) {
+            for (String name: known.getClasses()) {
+                dependent.addDependency(dependency, name);
+            }
+        }
+    }
+
+    /**
+     * Snapshot used for modules registered after this call.
+     */
+    public void setSnapshot(StartupSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public StartupSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    Collection<String> getClasses(Module module) {
+        return index.classesOf(module);
+    }
+
+    Collection<String> getResources(Module module) {
+        return index.resourcesOf(module);
+    }
+
     public Collection<Module> getModules() {
-        return unmodifiableCollection(modules);
+        return modules;
+    }
+
+    private final Object reloadLock = new Object();
+
+    /**
+     * Reloads modules of given files as single transaction.
+     * Modules depending on them (only on changed classes, see {@link Module#changedClasses()})
+     * are reloaded as well, every affected module is reloaded after its dependencies
+     * (modules of dependency cycle one after another, see {@link ModuleGraph}) and listeners are notified once per module with its final state.
+     * Modules whose files are removed are unloaded and modules depending on them are frozen.
+     * Module which cannot be updated (its file is corrupt or still being written) is frozen
+     * with its dependents, other modules are reloaded anyway.
+     * Frozen module is reloaded with all its dependents, so they are updated after it.
+     * @return files of modules which cannot be updated, so they can be reloaded again later
+     */
+    public Collection<File> reload(Collection<File> files) {
+        synchronized (reloadLock) {
+            long start = System.nanoTime();
+            Map<Module,Set<String>> affected = new HashMap<>();
+            for (Module module: modules) {
+                if (files.contains(module.getSource()) && ! affected.containsKey(module)) {
+                    Set<String> changed = module.getSource().isFile() && module.getState() != FROZEN ?
+                            module.changedClasses() : null;
+                    affected.put(module, changed);
+                    Collection<Module> cycle = graph.getCycle(module);
+                    for (Module dependent: graph.getDependents(module)) {
+                        if (dependent.usesClasses(module, changed) || cycle.contains(dependent)) {
+                            affect(dependent, affected);
+                        }
+                    }
+                }
+            }
+            List<Module> order = graph.order(affected.keySet());
+            List<File> failed = new ArrayList<>();
+            for (Module module: order) {
+                module.suspendEvents();
+            }
+            try {
+                for (Module module: order) {
+                    module.invalidate(affected.get(module));
+                }
+                for (Module module: order) {
+                    try {
+                        if (! module.getSource().isFile()) {
+                            module.unload();
+                        }
+                        else if (isMissing(module.getDependencies())) {
+                            module.freeze();
+                        }
+                        else {
+                            module.update();
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Cannot reload {}, it is frozen with its dependents: {}", module, e);
+                        module.freeze();
+                        failed.add(module.getSource());
+                    }
+                }
+            }
+            finally {
+                for (Module module: order) {
+                    module.resumeEvents();
+                }
+            }
+            log.debug("{} modules reloaded in {} us", order.size(), (System.nanoTime() - start) / 1000);
+            return failed;
+        }
+    }
+
+    private void affect(Module module, Map<Module,Set<String>> affected) {
+        if (affected.get(module) != null || ! affected.containsKey(module)) {
+            affected.put(module, null);
+            for (Module dependent: graph.getDependents(module)) {
+                affect(dependent, affected);
+            }
+        }
+    }
+
+    private static boolean isMissing(Collection<Module> dependencies) {
+        for (Module dependency: dependencies) {
+            if (dependency.getState() == UNLOADED || dependency.getState() == FROZEN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dependencies between registered modules.
+     */
+    public ModuleGraph getGraph() {
+        return graph;
+    }
+
+    /**
+     * Service implementations of active modules by interface.
+     */
+    public ServiceRegistry getServices() {
+        return services;
     }
 
-    private final ThreadLocal<Module> callerModule = new ThreadLocal<>();
+    /**
+     * Loaders of previous module versions, which are closed and checked for leaks.
+     */
+    public RetiredLoaders getRetiredLoaders() {
+        return retiredLoaders;
+    }
 
-    private final Dispatcher loader = new Dispatcher();
+    public ManagerMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void removeModuleListener(ModuleStateListener listener) {
+        super.removeModuleListener(listener);
+        metrics.listenerRemoved(listener);
+    }
+
+    @Override
+    protected void listenerCompleted(ModuleStateListener listener, long nanos) {
+        metrics.listenerCompleted(listener, nanos);
+    }
+
+    private final Collection<ModuleUsageListener> usageListeners = new CopyOnWriteArraySet<>();
+
+    public void addUsageListener(ModuleUsageListener listener) {
+        usageListeners.add(listener);
+    }
+
+    public void removeUsageListener(ModuleUsageListener listener) {
+        usageListeners.remove(listener);
+    }
+
+    private void moduleUsed(Module module) {
+        log.debug("{} is used", module);
+        for (ModuleUsageListener listener: usageListeners) {
+            listener.moduleUsed(module);
+        }
+    }
+
+    private volatile EventDispatcher events;
+
+    /**
+     * Sets dispatcher to notify manager listeners asynchronously, null to notify them
+     * synchronously by thread which changed module state.
+     * Module listeners are always notified synchronously.
+     */
+    public void setEventDispatcher(EventDispatcher dispatcher) {
+        this.events = dispatcher;
+    }
+
+    /**
+     * Waits until manager listeners are notified of all module state changes.
+     *
+     * @return false if there are still pending events after timeout
+     */
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        EventDispatcher events = this.events;
+        return events == null || events.awaitQuiescence(timeout, unit);
+    }
+
+    @Override
+    protected void triggerStateChange(final Module module) {
+        EventDispatcher events = this.events;
+        if (events == null) {
+            super.triggerStateChange(module);
+            return;
+        }
+        List<Runnable> deliveries = new ArrayList<>();
+        for (final ModuleStateListener listener: getModuleListeners()) {
+            deliveries.add(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    listener.stateChanged(module);
+                    listenerCompleted(listener, System.nanoTime() - start);
+                }
+
+                @Override
+                public String toString() {
+                    return listener.toString();
+                }
+            });
+        }
+        events.dispatch(module, deliveries);
+    }
+
+    /**
+     * Classes which are defined by several active modules.
+     */
+    public Map<String,Collection<Module>> getDuplicateClasses() {
+        return index.getDuplicates();
+    }
+
+    private final Dispatcher loader = new Dispatcher(this);
 
     @Override
     public Loader getLoader() {
         return loader;
     }
 
-    protected ClassLoader getLoader(final Module module) {
-        return new ClassLoader(loader) {
-            @Override
-            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
-                callerModule.set(module); // tracing which module made request
-                try {
-                    return super.loadClass(name, resolve);
-                }
-                finally {
-                    callerModule.set(null);
+    protected ClassLoader getLoader(Module module) {
+        return new ImportLoader(this, module);
+    }
+
+    /**
+     * Parent of module loader, which requests classes of other modules on behalf of its module,
+     * so dispatcher records dependency of that module.
+     * Each dependency is bound to the loader of its version this module was linked with first,
+     * so module, which is kept when dependency is reloaded (see {@link Module#changedClasses()}),
+     * keeps importing classes of previous version until it is reloaded itself
+     * and never mixes classes of both versions.
+     * Imported classes are cached and reused while their module is active,
+     * so repeated imports never reach dispatcher.
+     * It does not define classes, so it takes no locks and is parallel capable,
+     * otherwise JVM would lock it during resolution of module classes.
+     */
+    private static class ImportLoader extends ClassLoader {
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final ModuleManager manager;
+        private final Module module;
+        private final ConcurrentMap<String,Import> imports = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<Module,Loader> bindings = new ConcurrentHashMap<>();
+
+        /**
+         * Class imported from bound loader of module, or from parent loader if module is null.
+         */
+        private static class Import {
+            final Class<?> type;
+            final Module module;
+
+            Import(Class<?> type, Module module) {
+                this.type = type;
+                this.module = module;
+            }
+
+            boolean isValid() {
+                return module == null || module.isActive();
+            }
+        }
+
+        ImportLoader(ModuleManager manager, Module module) {
+            super(manager.loader);
+            this.manager = manager;
+            this.module = module;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Import cached = imports.get(name);
+            Class<?> cls;
+            if (cached != null && cached.isValid()) {
+                cls = cached.type;
+            }
+            else {
+                if (cached != null) {
+                    imports.remove(name, cached); // does not hold previous version if import fails
                 }
+                cls = manager.loader.dispatch(this, name);
+            }
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
+        }
+
+        /**
+         * Resource of parent loader or other module, own resources are found by module loader,
+         * so they are preferred to resources of other modules.
+         */
+        @Override
+        public URL getResource(String name) {
+            URL url = manager.loader.getParent().getResource(name);
+            if (url == null && ! contains(name)) {
+                url = manager.loader.findResource(name);
             }
-        };
+            return url;
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name) throws IOException {
+            List<URL> urls = Collections.list(manager.loader.getParent().getResources(name));
+            urls.addAll(manager.loader.findResources(module, name));
+            return Collections.enumeration(urls);
+        }
+
+        private boolean contains(String name) {
+            ModuleArchive archive = module.getArchive();
+            return archive != null && archive.contains(name);
+        }
+
+        /**
+         * Loader of dependency this module is linked with, null if it is not linked yet.
+         */
+        Loader getBinding(Module dependency) {
+            return bindings.get(dependency);
+        }
+
+        /**
+         * Binds dependency to loader unless it is bound already, returns bound loader.
+         */
+        Loader bind(Module dependency, Loader loader) {
+            Loader bound = bindings.putIfAbsent(dependency, loader);
+            return (bound != null) ? bound : loader;
+        }
+
+        void imported(String name, Class<?> type, Module source) {
+            imports.put(name, new Import(type, source));
+        }
+
+        @Override
+        public String toString() {
+            return module.getName() +"@ImportLoader";
+        }
     }
 
     public Class<?> loadClass(String className) throws ClassNotFoundException {
         return loader.loadClass(className);
     }
 
-    public Module findSource(String className) {
-        for (Module module: modules) {
-            if (module.getLoader().isSourceOf(className)) {
-                return module;
+    /**
+     * Resource of parent loader or active module, modules are found by index of their entries.
+     */
+    public URL getResource(String name) {
+        return loader.getResource(name);
+    }
+
+    public Enumeration<URL> getResources(String name) throws IOException {
+        return loader.getResources(name);
+    }
+
+    /**
+     * Read-only content of resource of the first active module containing it, null if there is none.
+     * Content of small resources is cached until module changes state.
+     */
+    public ByteBuffer getResourceContent(String name) throws IOException {
+        for (Module module: index.getResourceOwners(name)) {
+            ByteBuffer content = module.isActive() ? resources.get(module, name) : null;
+            if (content != null) {
+                return content;
             }
         }
         return null;
     }
 
+    public Module findSource(String className) {
+        Module module = index.get(className);
+        return (module != null && module.getLoader().isSourceOf(className)) ? module : null;
+    }
+
+    /**
+     * Proxy of service implementation with the highest ranking in {@link #getServices()}.
+     */
+    public <T> T lookup(Class<T> type) {
+        return services.lookup(type);
+    }
+
     public <T> T lookup(Class<T> type, String impl) {
         return ServiceProxy.create(this, type, impl);
     }
 
-    private class Dispatcher extends ClassLoader implements Loader {
+    /**
+     * Proxy of service, which creates instances of implementation in given scope.
+     */
+    public <T> T lookup(Class<T> type, String impl, ServiceScope scope) {
+        return ServiceProxy.create(this, type, impl, scope);
+    }
+
+    /**
+     * Routes class requests to modules, registered as parallel capable
+     * so modules can be loaded from several threads at once.
+     * Dispatcher does not define classes, so it takes no class loading locks:
+     * module loaders define classes under their own per class name locks.
+     */
+    private static class Dispatcher extends ClassLoader implements Loader {
+
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final ModuleManager manager;
+
+        Dispatcher(ModuleManager manager) {
+            this.manager = manager;
+        }
+
         @Override
-        protected Class<?> findClass(String name) throws ClassNotFoundException {
-            Module caller = callerModule.get();
-            for (Module module: modules) {
-                if (module.isActive() && module != caller) {
-                    Class<?> cls = module.getLoader().lookup(name);
-                    if (cls != null) {
-                        if (caller != null) {
-                            caller.addDependency(module, name);
-                        }
-                        return cls;
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> cls = dispatch(null, name);
+            if (resolve) {
+                resolveClass(cls);
+            }
+            return cls;
+        }
+
+        /**
+         * Loads class from parent loader or from module, which defines it,
+         * for importer if it is not null.
+         */
+        Class<?> dispatch(ImportLoader importer, String name) throws ClassNotFoundException {
+            long start = System.nanoTime();
+            boolean found = false;
+            try {
+                Class<?> cls = find(importer, name);
+                found = true;
+                return cls;
+            }
+            finally {
+                manager.metrics.dispatched(found, System.nanoTime() - start);
+            }
+        }
+
+        private Class<?> find(ImportLoader importer, String name) throws ClassNotFoundException {
+            if (manager.missingClasses.contains(name)) {
+                throw new MissingClassException(name);
+            }
+            try {
+                return delegate(importer, name);
+            }
+            catch (ClassNotFoundException e) {
+                if (manager.index.get(name) == null) {
+                    manager.markMissing(name);
+                    if (manager.index.get(name) != null) { // module was activated concurrently
+                        manager.missingClasses.remove(name);
                     }
                 }
+                throw e;
+            }
+        }
+
+        /**
+         * Parent first delegation without class loading lock.
+         */
+        private Class<?> delegate(ImportLoader importer, String name) throws ClassNotFoundException {
+            Class<?> cls;
+            try {
+                cls = getParent().loadClass(name);
+            } catch (ClassNotFoundException e) {
+                return findModuleClass(importer, name);
+            }
+            if (importer != null) {
+                importer.imported(name, cls, null);
+            }
+            return cls;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            return findModuleClass(null, name);
+        }
+
+        private Class<?> findModuleClass(ImportLoader importer, String name) throws ClassNotFoundException {
+            Module caller = (importer != null) ? importer.module : null;
+            Module module = manager.index.get(name);
+            if (module == null || module == caller) {
+                // module loader asks its parent for own classes first, so this miss is frequent
+                throw new MissingClassException(name);
+            }
+            Class<?> cls;
+            if (importer == null) {
+                cls = lookup(module, module.getLoader(), name);
+            }
+            else {
+                Loader bound = importer.getBinding(module);
+                Loader loader = (bound != null) ? bound : module.getLoader();
+                cls = lookup(module, loader, name);
+                if (cls != null && bound == null && importer.bind(module, loader) != loader) {
+                    // bound concurrently to other version
+                    cls = lookup(module, importer.getBinding(module), name);
+                }
             }
-            throw new ClassNotFoundException(name);
+            if (cls == null) {
+                throw new ClassNotFoundException(name);
+            }
+            if (importer != null) {
+                caller.addDependency(module, name);
+                importer.imported(name, cls, module);
+            }
+            return cls;
+        }
+
+        /**
+         * Resource of the first active module containing it.
+         */
+        @Override
+        protected URL findResource(String name) {
+            for (Module module: manager.index.getResourceOwners(name)) {
+                URL url = module.isActive() ? module.findResource(name) : null;
+                if (url != null) {
+                    return url;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) {
+            return Collections.enumeration(findResources(null, name));
+        }
+
+        /**
+         * Resources of active modules except given one.
+         */
+        List<URL> findResources(Module excluded, String name) {
+            List<URL> urls = new ArrayList<>();
+            for (Module module: manager.index.getResourceOwners(name)) {
+                URL url = (module != excluded && module.isActive()) ? module.findResource(name) : null;
+                if (url != null) {
+                    urls.add(url);
+                }
+            }
+            return urls;
         }
 
         @Override
@@ -95,24 +679,46 @@ public class ModuleManager extends AbstractModule {
 
         @Override
         public Class<?> lookup(String name) {
-            for (Module module: modules) {
-                if (module.isActive()) {
-                    Class<?> cls = module.getLoader().lookup(name);
-                    if (cls != null) {
-                        return cls;
-                    }
-                }
+            if (manager.missingClasses.contains(name)) {
+                return null;
             }
-            return null;
+            Module module = manager.index.get(name);
+            return (module != null) ? lookup(module, module.getLoader(), name) : null;
+        }
+
+        private Class<?> lookup(Module module, Loader loader, String name) {
+            Class<?> cls;
+            try {
+                cls = module.isActive() ? loader.lookup(name) : null;
+            } catch (IllegalStateException e) {
+                return null; // module was deactivated concurrently
+            }
+            if (cls != null && module.markUsed()) {
+                manager.moduleUsed(module);
+            }
+            return cls;
         }
 
         @Override
         public boolean isSourceOf(String className) {
-            for (Module module: modules) {
-                if (module.getLoader().isSourceOf(className))
-                    return true;
-            }
-            return false;
+            return manager.findSource(className) != null;
         }
-    };
+    }
+
+    /**
+     * Cheap exception for cached and frequent misses, stack trace is not filled.
+     */
+    private static class MissingClassException extends ClassNotFoundException {
+
+        private static final long serialVersionUID = 1L;
+
+        MissingClassException(String name) {
+            super(name);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
 }
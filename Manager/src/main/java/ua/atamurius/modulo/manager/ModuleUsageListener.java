@@ -0,0 +1,9 @@
+package ua.atamurius.modulo.manager;
+
+/**
+ * Listener for the first class of module version resolved by manager.
+ * It is called while class is being loaded, so it should not block.
+ */
+public interface ModuleUsageListener {
+    void moduleUsed(Module module);
+}
@@ -0,0 +1,112 @@
+package ua.atamurius.modulo.manager;
+
+import ua.atamurius.modulo.fs.ModuleArchive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content of recently read module resources as read-only buffers.
+ * Content is cached by module and resource name (several modules can contain the same resource)
+ * with version of module it was read from and dropped when module changes state,
+ * so it is never served for other module version.
+ * Up to {@code ResourceCache.LIMIT} (256) resources are kept, resources larger than
+ * {@code ResourceCache.MAX_SIZE} (65536 bytes) are not cached.
+ */
+class ResourceCache {
+
+    private static final String PREFIX = ResourceCache.class.getName();
+
+    private static final int LIMIT = Integer.getInteger(PREFIX +".LIMIT", 256);
+    private static final int MAX_SIZE = Integer.getInteger(PREFIX +".MAX_SIZE", 64 * 1024);
+
+    private static class Key {
+        final Module module;
+        final String name;
+
+        Key(Module module, String name) {
+            this.module = module;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).module == module && ((Key) other).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(module) + name.hashCode();
+        }
+    }
+
+    private static class Resource {
+        final Module module;
+        final int version;
+        final ByteBuffer content;
+
+        Resource(Module module, int version, ByteBuffer content) {
+            this.module = module;
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    private final Map<Key,Resource> resources = new LinkedHashMap<Key,Resource>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Resource> eldest) {
+            return size() > LIMIT;
+        }
+    };
+
+    /**
+     * Content of module resource, null if module does not contain it or is unloaded.
+     * Each call returns its own buffer, so position and limit are not shared.
+     */
+    ByteBuffer get(Module module, String name) throws IOException {
+        Key key = new Key(module, name);
+        Resource cached;
+        synchronized (resources) {
+            cached = resources.get(key);
+        }
+        if (cached != null && cached.version == module.getVersion()) {
+            return cached.content.duplicate();
+        }
+        // version is taken before archive, so content of previous archive is never cached as current version,
+        // content of newer archive cached with previous version does not match it and is never served
+        int version = module.getVersion();
+        ModuleArchive archive = module.getArchive();
+        ByteBuffer content;
+        try {
+            content = (archive != null) ? archive.getContent(name) : null;
+        } catch (IllegalStateException e) {
+            return null; // module is reloaded concurrently
+        }
+        if (content == null) {
+            return null;
+        }
+        content = content.asReadOnlyBuffer();
+        if (content.remaining() <= MAX_SIZE) {
+            synchronized (resources) {
+                resources.put(key, new Resource(module, version, content));
+            }
+        }
+        return content.duplicate();
+    }
+
+    /**
+     * Drops content of module, called when module changes state.
+     */
+    void invalidate(Module module) {
+        synchronized (resources) {
+            for (Iterator<Resource> i = resources.values().iterator(); i.hasNext(); ) {
+                if (i.next().module == module) {
+                    i.remove();
+                }
+            }
+        }
+    }
+}
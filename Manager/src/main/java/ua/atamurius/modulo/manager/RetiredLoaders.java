@@ -0,0 +1,226 @@
+package ua.atamurius.modulo.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Loaders of previous module versions.
+ * Loader is retired when module is updated or unloaded, and closed (releasing its files)
+ * after {@code RetiredLoaders.CLOSE_DELAY_MILLIS} (1000), when dependent modules, which could
+ * still use its classes, are updated or unloaded as well.
+ * Closed loaders are tracked by phantom references, loaders which are not collected
+ * in {@code RetiredLoaders.GRACE_MILLIS} (60000) after closing are reported as leaks
+ * together with their holders found by {@link LeakInspector}s.
+ */
+public class RetiredLoaders {
+
+    private static final Logger log = LoggerFactory.getLogger(RetiredLoaders.class);
+
+    private static final String PREFIX = RetiredLoaders.class.getName();
+
+    private static final long CLOSE_DELAY_MILLIS = Long.getLong(PREFIX +".CLOSE_DELAY_MILLIS", 1000);
+    private static final long GRACE_MILLIS = Long.getLong(PREFIX +".GRACE_MILLIS", 60000);
+    private static final long CHECK_MILLIS = 1000;
+
+    private final ModuleManager manager;
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+    private final Set<Retired> retired = Collections.newSetFromMap(new ConcurrentHashMap<Retired,Boolean>());
+
+    /**
+     * Inspectors are weakly referenced, so they can be dropped without unregistering.
+     */
+    private final Set<LeakInspector> inspectors = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<LeakInspector,Boolean>()));
+
+    private ScheduledExecutorService timer;
+
+    private static class Retired extends PhantomReference<ClassLoader> {
+        final String module;
+        final int version;
+        final long retiredAt = System.currentTimeMillis();
+        /**
+         * Dependents at their versions, which can still use classes of loader.
+         */
+        final Map<Module,Integer> dependents;
+        /**
+         * Used to close and inspect loader, as phantom reference cannot be dereferenced.
+         */
+        final WeakReference<URLClassLoader> loader;
+        volatile long closedAt = 0;
+        volatile List<String> holders;
+
+        Retired(URLClassLoader loader, Module module, int version,
+                Map<Module,Integer> dependents, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.loader = new WeakReference<>(loader);
+            this.module = module.getName();
+            this.version = version;
+            this.dependents = dependents;
+        }
+
+        boolean isReleased() {
+            for (Map.Entry<Module,Integer> e: dependents.entrySet()) {
+                Module dependent = e.getKey();
+                if (dependent.getVersion() == e.getValue() && dependent.getState() != Module.State.UNLOADED) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return module +"@Loader:"+ version;
+        }
+    }
+
+    RetiredLoaders(ModuleManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Inspector is called for each leaked loader.
+     * Inspectors are weakly referenced, so service proxies can register themselves,
+     * and caller has to keep reference to inspector.
+     */
+    public void addInspector(LeakInspector inspector) {
+        inspectors.add(inspector);
+    }
+
+    public void removeInspector(LeakInspector inspector) {
+        inspectors.remove(inspector);
+    }
+
+    void retire(Module module, int version, URLClassLoader loader) {
+        Map<Module,Integer> dependents = new HashMap<>();
+        for (Module dependent: manager.getGraph().getDependents(module)) {
+            dependents.put(dependent, dependent.getVersion());
+        }
+        retired.add(new Retired(loader, module, version, dependents, queue));
+        manager.getMetrics().loaderRetired();
+        log.debug("{}@Loader:{} is retired, used by {}", module.getName(), version, dependents.keySet());
+        schedule();
+    }
+
+    private synchronized void schedule() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "RetiredLoaders");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check();
+                    } catch (RuntimeException e) {
+                        log.error("Check of retired loaders failed: {}", e);
+                    }
+                }
+            }, CHECK_MILLIS, CHECK_MILLIS, MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes released loaders and reports leaks, called periodically.
+     */
+    public synchronized void check() {
+        for (Reference<?> ref; (ref = queue.poll()) != null; ) {
+            retired.remove(ref);
+            manager.getMetrics().loaderCollected();
+            log.debug("{} is collected", ref);
+        }
+        long now = System.currentTimeMillis();
+        for (Retired loader: retired) {
+            if (loader.closedAt == 0) {
+                if (now - loader.retiredAt >= CLOSE_DELAY_MILLIS && loader.isReleased()) {
+                    close(loader);
+                    loader.closedAt = now;
+                }
+            }
+            else if (loader.holders == null && now - loader.closedAt >= GRACE_MILLIS) {
+                URLClassLoader leaked = loader.loader.get();
+                if (leaked != null) {
+                    loader.holders = findHolders(leaked);
+                    manager.getMetrics().loaderLeaked();
+                    log.warn("{} is not collected in {} ms after closing, held by {}",
+                            loader, now - loader.closedAt, loader.holders);
+                }
+            }
+        }
+    }
+
+    private void close(Retired retired) {
+        URLClassLoader loader = retired.loader.get();
+        if (loader != null) {
+            try {
+                loader.close();
+                log.debug("{} is closed", retired);
+            } catch (IOException e) {
+                log.warn("Cannot close {}: {}", retired, e);
+            }
+        }
+    }
+
+    private List<String> findHolders(ClassLoader loader) {
+        List<String> holders = new ArrayList<>();
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (thread.getContextClassLoader() == loader) {
+                holders.add("context loader of thread "+ thread.getName());
+            }
+        }
+        List<LeakInspector> current;
+        synchronized (inspectors) {
+            current = new ArrayList<>(inspectors);
+        }
+        for (LeakInspector inspector: current) {
+            try {
+                inspector.findHolders(loader, holders);
+            } catch (RuntimeException e) {
+                log.warn("Inspector {} failed: {}", inspector, e);
+            }
+        }
+        if (holders.isEmpty()) {
+            holders.add("unknown (instances of its classes or thread locals)");
+        }
+        return holders;
+    }
+
+    /**
+     * Reported leaks, which are still not collected, with their holders.
+     */
+    public Map<String,List<String>> getLeaks() {
+        Map<String,List<String>> leaks = new TreeMap<>();
+        for (Retired loader: retired) {
+            if (loader.holders != null) {
+                leaks.put(loader.toString(), loader.holders);
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * Retired loaders, which are not collected yet.
+     */
+    public int getRetained() {
+        return retired.size();
+    }
+}
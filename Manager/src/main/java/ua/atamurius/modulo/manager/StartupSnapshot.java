@@ -0,0 +1,293 @@
+package ua.atamurius.modulo.manager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Snapshot of modules persisted to local file between process starts.
+ * Records are keyed by module content hash, so they are used only for unchanged JARs:
+ * manager takes module classes and resources from record instead of reading archive entries
+ * and restores dependencies on unchanged modules before any class is loaded,
+ * {@link ua.atamurius.modulo.activator.ModuleActivator} takes annotation index
+ * instead of scanning classes and preloads classes activated last time in the same order.
+ * Snapshot is taken by {@link #capture(ModuleManager)} and written by {@link #save()}.
+ */
+public class StartupSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupSnapshot.class);
+
+    private static final int MAGIC = 0x4d4f4453;
+    private static final int FORMAT = 2;
+
+    private final File file;
+    private final Map<String,Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * Module with given content.
+     */
+    public static class Record {
+        private final String hash;
+        private final String name;
+        private final Collection<String> classes;
+        private final Collection<String> resources;
+        private final Map<String,Dependency> dependencies;
+        private volatile Map<String,Collection<String>> annotations;
+        private volatile List<String> activated;
+
+        Record(String hash, String name, Collection<String> classes, Collection<String> resources,
+               Map<String,Dependency> dependencies) {
+            this.hash = hash;
+            this.name = name;
+            this.classes = classes;
+            this.resources = resources;
+            this.dependencies = dependencies;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Collection<String> getClasses() {
+            return classes;
+        }
+
+        /**
+         * Names of archive entries other than classes and directories.
+         */
+        public Collection<String> getResources() {
+            return resources;
+        }
+
+        /**
+         * Dependencies by module name.
+         */
+        public Map<String,Dependency> getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * Annotations by class name, null if module was not activated.
+         */
+        public Map<String,Collection<String>> getAnnotations() {
+            return annotations;
+        }
+
+        public void setAnnotations(Map<String,Collection<String>> annotations) {
+            this.annotations = annotations;
+        }
+
+        /**
+         * Activated classes in order of activation, null if module was not activated.
+         */
+        public List<String> getActivated() {
+            return activated;
+        }
+
+        public void setActivated(List<String> activated) {
+            this.activated = activated;
+        }
+    }
+
+    /**
+     * Dependency on module with given content through given classes.
+     */
+    public static class Dependency {
+        private final String hash;
+        private final Collection<String> classes;
+
+        Dependency(String hash, Collection<String> classes) {
+            this.hash = hash;
+            this.classes = classes;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public Collection<String> getClasses() {
+            return classes;
+        }
+    }
+
+    private StartupSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads snapshot from file, snapshot is empty if file is missing or cannot be read.
+     */
+    public static StartupSnapshot load(File file) {
+        StartupSnapshot snapshot = new StartupSnapshot(file);
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                    throw new IOException("unsupported format");
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    Record record = readRecord(in);
+                    snapshot.records.put(record.hash, record);
+                }
+                log.debug("{} modules are read from snapshot {}", snapshot.records.size(), file);
+            } catch (IOException e) {
+                log.warn("Cannot read snapshot {}, it is ignored: {}", file, e);
+                snapshot.records.clear();
+            }
+        }
+        return snapshot;
+    }
+
+    private static Record readRecord(DataInputStream in) throws IOException {
+        String hash = in.readUTF();
+        String name = in.readUTF();
+        Collection<String> classes = readList(in);
+        Collection<String> resources = readList(in);
+        Map<String,Dependency> dependencies = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String dependency = in.readUTF();
+            dependencies.put(dependency, new Dependency(in.readUTF(), readList(in)));
+        }
+        Record record = new Record(hash, name, classes, resources, dependencies);
+        if (in.readBoolean()) {
+            Map<String,Collection<String>> annotations = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                annotations.put(in.readUTF(), readList(in));
+            }
+            record.annotations = annotations;
+        }
+        if (in.readBoolean()) {
+            record.activated = readList(in);
+        }
+        return record;
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(in.readUTF());
+        }
+        return list;
+    }
+
+    /**
+     * Writes snapshot to temporary file, which replaces snapshot file.
+     */
+    public void save() throws IOException {
+        File temp = new File(file.getPath() +".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            Collection<Record> current = new ArrayList<>(records.values());
+            out.writeInt(current.size());
+            for (Record record: current) {
+                writeRecord(out, record);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        log.debug("{} modules are written to snapshot {}", records.size(), file);
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        out.writeUTF(record.hash);
+        out.writeUTF(record.name);
+        writeList(out, record.classes);
+        writeList(out, record.resources);
+        out.writeInt(record.dependencies.size());
+        for (Map.Entry<String,Dependency> e: record.dependencies.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue().hash);
+            writeList(out, e.getValue().classes);
+        }
+        Map<String,Collection<String>> annotations = record.annotations;
+        out.writeBoolean(annotations != null);
+        if (annotations != null) {
+            out.writeInt(annotations.size());
+            for (Map.Entry<String,Collection<String>> e: annotations.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeList(out, e.getValue());
+            }
+        }
+        List<String> activated = record.activated;
+        out.writeBoolean(activated != null);
+        if (activated != null) {
+            writeList(out, activated);
+        }
+    }
+
+    private static void writeList(DataOutputStream out, Collection<String> list) throws IOException {
+        out.writeInt(list.size());
+        for (String item: list) {
+            out.writeUTF(item);
+        }
+    }
+
+    /**
+     * Replaces records with active modules of manager, activation results
+     * of unchanged modules are kept.
+     */
+    public void capture(ModuleManager manager) {
+        Map<String,Record> captured = new HashMap<>();
+        for (Module module: manager.getModules()) {
+            String hash = hashOf(module);
+            if (hash == null || ! module.isActive()) {
+                continue;
+            }
+            Map<String,Dependency> dependencies = new HashMap<>();
+            for (Module dependency: module.getDependencies()) {
+                String dependencyHash = hashOf(dependency);
+                if (dependencyHash != null) {
+                    dependencies.put(dependency.getName(), new Dependency(dependencyHash,
+                            new ArrayList<>(module.getDependencyClasses(dependency))));
+                }
+            }
+            Record record = new Record(hash, module.getName(), new ArrayList<>(manager.getClasses(module)),
+                    new ArrayList<>(manager.getResources(module)), dependencies);
+            Record previous = records.get(hash);
+            if (previous != null) {
+                record.annotations = previous.annotations;
+                record.activated = previous.activated;
+            }
+            captured.put(hash, record);
+        }
+        records.keySet().retainAll(captured.keySet());
+        records.putAll(captured);
+    }
+
+    /**
+     * Record of current module content, null if there is none.
+     */
+    public Record get(Module module) {
+        String hash = hashOf(module);
+        return (hash != null) ? records.get(hash) : null;
+    }
+
+    public Record get(String hash) {
+        return records.get(hash);
+    }
+
+    public Collection<Record> getRecords() {
+        return Collections.unmodifiableCollection(records.values());
+    }
+
+    static String hashOf(Module module) {
+        ModuleArchive archive = module.getArchive();
+        try {
+            return (archive != null) ? archive.getHash() : null;
+        } catch (IllegalStateException e) {
+            return null; // module is reloaded concurrently
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ua.atamurius.modulo.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter for the hottest paths: each thread increments its own cell without atomic
+ * instructions, publishing it by ordered write, cells are summed on read,
+ * so value may lag behind concurrent increments only by writes still in flight.
+ * Cells of terminated threads are folded into counter and released when new thread starts counting
+ * or counter is read, so thread churn does not grow it.
+ */
+public class Counter {
+
+    /**
+     * Cell written only by its thread.
+     */
+    private static class Cell extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+
+        boolean isReleased() {
+            Thread thread = owner.get();
+            return thread == null || ! thread.isAlive();
+        }
+    }
+
+    private final Collection<Cell> cells = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Sum of released cells.
+     */
+    private final AtomicLong released = new AtomicLong();
+
+    /**
+     * Value at last reset, so reset does not write cells of other threads.
+     */
+    private volatile long base = 0;
+
+    private final ThreadLocal<Cell> cell = new ThreadLocal<Cell>() {
+        @Override
+        protected Cell initialValue() {
+            release();
+            Cell cell = new Cell();
+            cells.add(cell);
+            return cell;
+        }
+    };
+
+    public void increment() {
+        Cell cell = this.cell.get();
+        cell.lazySet(cell.get() + 1);
+    }
+
+    public long get() {
+        return sum() - base;
+    }
+
+    private long sum() {
+        release();
+        long sum = released.get();
+        for (Cell cell: cells) {
+            sum += cell.get();
+        }
+        return sum;
+    }
+
+    /**
+     * Folds cells of terminated threads, which cannot be written anymore.
+     */
+    private void release() {
+        for (Cell cell: cells) {
+            if (cell.isReleased() && cells.remove(cell)) {
+                released.addAndGet(cell.get());
+            }
+        }
+    }
+
+    public void reset() {
+        base = sum();
+    }
+}
@@ -0,0 +1,272 @@
+package ua.atamurius.modulo.metrics;
+
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleStateListener;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of module manager.
+ * Recording uses atomic counters and {@link Histogram}s only and does not allocate
+ * (except the first record for new module, listener or thread), so metrics are always enabled.
+ * Proxy calls are counted by per thread {@link Counter}, so proxies shared by many threads
+ * do not contend on it.
+ * Use {@link #register()} to expose them over JMX.
+ */
+public class ManagerMetrics implements ManagerMetricsMXBean {
+
+    private static final String DOMAIN = "ua.atamurius.modulo";
+
+    private final ConcurrentMap<String,AtomicLong> classLoads = new ConcurrentHashMap<>();
+    private final Histogram dispatcherHits = new Histogram();
+    private final Histogram dispatcherMisses = new Histogram();
+    private final Histogram updates = new Histogram();
+    private final Histogram invalidations = new Histogram();
+    private final Counter proxyCalls = new Counter();
+    private final AtomicLong proxyInstantiations = new AtomicLong();
+    private final AtomicLong suppressedReloads = new AtomicLong();
+    private final ConcurrentMap<ModuleStateListener,Histogram> listeners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,PoolStats> pools = new ConcurrentHashMap<>();
+    private final AtomicLong retiredLoaders = new AtomicLong();
+    private final AtomicLong collectedLoaders = new AtomicLong();
+    private final AtomicLong leakedLoaders = new AtomicLong();
+
+    private final ThreadLocal<int[]> invalidationDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private ObjectName name;
+
+    public void classLoaded(Module module) {
+        AtomicLong count = classLoads.get(module.getName());
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = classLoads.putIfAbsent(module.getName(), created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    public void moduleUnloaded(Module module) {
+        classLoads.remove(module.getName());
+    }
+
+    public void dispatched(boolean found, long nanos) {
+        (found ? dispatcherHits : dispatcherMisses).record(nanos);
+    }
+
+    public void updated(long nanos) {
+        updates.record(nanos);
+    }
+
+    /**
+     * Marks start of invalidation, nested invalidations of dependent modules
+     * are counted as part of the outermost one.
+     */
+    public long invalidationStarted() {
+        invalidationDepth.get()[0]++;
+        return System.nanoTime();
+    }
+
+    public void invalidationFinished(long start, boolean invalidated) {
+        if (--invalidationDepth.get()[0] == 0 && invalidated) {
+            invalidations.record(System.nanoTime() - start);
+        }
+    }
+
+    public void proxyCalled() {
+        proxyCalls.increment();
+    }
+
+    public void proxyInstantiated() {
+        proxyInstantiations.incrementAndGet();
+    }
+
+    public void reloadSuppressed() {
+        suppressedReloads.incrementAndGet();
+    }
+
+    public void listenerCompleted(ModuleStateListener listener, long nanos) {
+        Histogram histogram = listeners.get(listener);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = listeners.putIfAbsent(listener, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public void listenerRemoved(ModuleStateListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void loaderRetired() {
+        retiredLoaders.incrementAndGet();
+    }
+
+    public void loaderCollected() {
+        collectedLoaders.incrementAndGet();
+    }
+
+    public void loaderLeaked() {
+        leakedLoaders.incrementAndGet();
+    }
+
+    /**
+     * Statistics of pooled instances of given service class.
+     */
+    public PoolStats pool(String className) {
+        PoolStats stats = pools.get(className);
+        if (stats == null) {
+            PoolStats created = new PoolStats();
+            stats = pools.putIfAbsent(className, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public Map<String,Long> getClassLoads() {
+        Map<String,Long> result = new TreeMap<>();
+        for (Map.Entry<String,AtomicLong> e: classLoads.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getDispatcherHits() {
+        return dispatcherHits.getCount();
+    }
+
+    @Override
+    public long getDispatcherMisses() {
+        return dispatcherMisses.getCount();
+    }
+
+    @Override
+    public Histogram.Snapshot getDispatcherHitTime() {
+        return dispatcherHits.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getDispatcherMissTime() {
+        return dispatcherMisses.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getUpdateTime() {
+        return updates.getSnapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getInvalidationTime() {
+        return invalidations.getSnapshot();
+    }
+
+    @Override
+    public long getProxyCalls() {
+        return proxyCalls.get();
+    }
+
+    @Override
+    public long getProxyInstantiations() {
+        return proxyInstantiations.get();
+    }
+
+    @Override
+    public long getSuppressedReloads() {
+        return suppressedReloads.get();
+    }
+
+    @Override
+    public Map<String,Histogram.Snapshot> getListenerTimes() {
+        Map<String,Histogram.Snapshot> result = new TreeMap<>();
+        for (Map.Entry<ModuleStateListener,Histogram> e: listeners.entrySet()) {
+            result.put(String.valueOf(e.getKey()), e.getValue().getSnapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String,PoolStats.Snapshot> getPools() {
+        Map<String,PoolStats.Snapshot> result = new TreeMap<>();
+        for (Map.Entry<String,PoolStats> e: pools.entrySet()) {
+            result.put(e.getKey(), e.getValue().getSnapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public long getRetainedLoaders() {
+        return retiredLoaders.get() - collectedLoaders.get();
+    }
+
+    @Override
+    public long getLeakedLoaders() {
+        return leakedLoaders.get();
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong count: classLoads.values()) {
+            count.set(0);
+        }
+        dispatcherHits.reset();
+        dispatcherMisses.reset();
+        updates.reset();
+        invalidations.reset();
+        proxyCalls.reset();
+        proxyInstantiations.set(0);
+        suppressedReloads.set(0);
+        for (Histogram histogram: listeners.values()) {
+            histogram.reset();
+        }
+        for (PoolStats stats: pools.values()) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * Registers metrics in platform MBean server.
+     */
+    public synchronized ObjectName register() {
+        if (name == null) {
+            try {
+                ObjectName name = new ObjectName(DOMAIN +":type=ModuleManager,id="+ System.identityHashCode(this));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                this.name = name;
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot register metrics MBean", e);
+            }
+        }
+        return name;
+    }
+
+    public synchronized void unregister() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                throw new IllegalStateException("Cannot unregister metrics MBean "+ name, e);
+            }
+            name = null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ua.atamurius.modulo.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ManagerMetrics}, all times are in nanoseconds.
+ */
+public interface ManagerMetricsMXBean {
+
+    /**
+     * Classes defined by each module loader, by module name.
+     */
+    Map<String,Long> getClassLoads();
+
+    long getDispatcherHits();
+
+    long getDispatcherMisses();
+
+    Histogram.Snapshot getDispatcherHitTime();
+
+    Histogram.Snapshot getDispatcherMissTime();
+
+    Histogram.Snapshot getUpdateTime();
+
+    /**
+     * Time of invalidation including cascade to dependent modules.
+     */
+    Histogram.Snapshot getInvalidationTime();
+
+    long getProxyCalls();
+
+    long getProxyInstantiations();
+
+    /**
+     * Module file changes which were ignored, because module content was not changed.
+     */
+    long getSuppressedReloads();
+
+    /**
+     * Time spent in each manager listener, by listener.
+     */
+    Map<String,Histogram.Snapshot> getListenerTimes();
+
+    /**
+     * Statistics of pooled service instances, by service class.
+     */
+    Map<String,PoolStats.Snapshot> getPools();
+
+    /**
+     * Loaders of previous module versions, which are not collected yet.
+     */
+    long getRetainedLoaders();
+
+    /**
+     * Loaders which were not collected in grace period after closing.
+     */
+    long getLeakedLoaders();
+
+    void reset();
+}
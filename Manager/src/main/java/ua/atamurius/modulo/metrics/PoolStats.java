@@ -0,0 +1,115 @@
+package ua.atamurius.modulo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of pooled service instances, see {@link ManagerMetrics#pool(String)}.
+ * Counters survive replacement of pool by new version of module,
+ * acquisitions are counted by per thread {@link Counter}s, so they do not contend.
+ */
+public class PoolStats {
+
+    private volatile int max;
+    private final Counter acquisitions = new Counter();
+    private final Counter releases = new Counter();
+    private volatile long acquisitionsReset = 0;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final Histogram waits = new Histogram();
+
+    public void pooled(int max) {
+        this.max = max;
+    }
+
+    public void created() {
+        created.incrementAndGet();
+    }
+
+    public void acquired() {
+        acquisitions.increment();
+    }
+
+    /**
+     * Records time spent waiting for instance, when all of them were in use.
+     */
+    public void waited(long nanos) {
+        waits.record(nanos);
+    }
+
+    public void timedOut() {
+        timeouts.incrementAndGet();
+    }
+
+    public void released() {
+        releases.increment();
+    }
+
+    public void reset() {
+        created.set(0);
+        acquisitionsReset = acquisitions.get(); // in use count is derived from it
+        timeouts.set(0);
+        waits.reset();
+    }
+
+    public Snapshot getSnapshot() {
+        // instance is released after it is acquired, so releases are read first
+        long released = releases.get();
+        long acquired = acquisitions.get();
+        return new Snapshot(max, Math.max(acquired - released, 0), created.get(),
+                acquired - acquisitionsReset, timeouts.get(), waits.getSnapshot());
+    }
+
+    public static class Snapshot {
+        private final int max;
+        private final long inUse;
+        private final long created;
+        private final long acquisitions;
+        private final long timeouts;
+        private final Histogram.Snapshot waitTime;
+
+        Snapshot(int max, long inUse, long created, long acquisitions, long timeouts, Histogram.Snapshot waitTime) {
+            this.max = max;
+            this.inUse = inUse;
+            this.created = created;
+            this.acquisitions = acquisitions;
+            this.timeouts = timeouts;
+            this.waitTime = waitTime;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public long getInUse() {
+            return inUse;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getAcquisitions() {
+            return acquisitions;
+        }
+
+        /**
+         * Acquisitions which failed, because all instances were in use for too long.
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Time of acquisitions, which had to wait for instance.
+         */
+        public Histogram.Snapshot getWaitTime() {
+            return waitTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("max=%d inUse=%d created=%d acquisitions=%d timeouts=%d waits: %s",
+                    max, inUse, created, acquisitions, timeouts, waitTime);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ua.atamurius.modulo.service;
+
+import java.lang.annotation.*;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Service implementation, registered in {@link ServiceRegistry} by {@link ServiceActivator}.
+ */
+@Retention(RUNTIME)
+@Target(TYPE)
+@Documented
+public @interface Service {
+
+    /**
+     * Service interfaces, all interfaces of class by default.
+     */
+    Class<?>[] value() default {};
+
+    /**
+     * Implementations with higher ranking are preferred.
+     */
+    int ranking() default 0;
+}
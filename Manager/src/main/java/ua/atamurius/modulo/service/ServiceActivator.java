@@ -0,0 +1,30 @@
+package ua.atamurius.modulo.service;
+
+import ua.atamurius.modulo.activator.Activator;
+
+/**
+ * Registers classes annotated with {@link Service} in registry,
+ * should be registered in {@link ua.atamurius.modulo.activator.ActivatorRepository}.
+ */
+public class ServiceActivator implements Activator<Service> {
+
+    private final ServiceRegistry registry;
+
+    public ServiceActivator(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean activate(Class<?> type, Service target) {
+        Class<?>[] interfaces = (target.value().length > 0) ? target.value() : type.getInterfaces();
+        for (Class<?> service: interfaces) {
+            registry.register(service.getName(), type.getName(), target.ranking(), type);
+        }
+        return interfaces.length > 0;
+    }
+
+    @Override
+    public void deactivate(Class<?> type, Service target) {
+        registry.unregister(type);
+    }
+}
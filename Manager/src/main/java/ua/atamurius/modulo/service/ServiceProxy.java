@@ -1,60 +1,314 @@
 package ua.atamurius.modulo.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.manager.LeakInspector;
 import ua.atamurius.modulo.manager.Module;
 import ua.atamurius.modulo.manager.ModuleManager;
 import ua.atamurius.modulo.manager.ModuleStateListener;
+import ua.atamurius.modulo.service.ServiceScope.Instances;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class ServiceProxy implements InvocationHandler {
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static ua.atamurius.modulo.manager.Module.State.UNLOADED;
+
+/**
+ * Service proxy, which instantiates implementation class on demand
+ * in given {@link ServiceScope} and replaces instances when its module is reloaded.
+ * Target instances are published atomically, so proxy can be used by any threads
+ * and costs single volatile read per call besides reflective invocation
+ * (which is compiled by JVM after warm up and outperforms non-constant method handles),
+ * in-flight call tracking and acquisition of instance in its scope.
+ * <p>
+ * While module is not active, calls are served by instances of previous version.
+ * When new version becomes active, new instances are created in background and swapped in,
+ * previous instances are retired after their in-flight calls are completed
+ * (and closed if they are {@link AutoCloseable}).
+ * When module is unloaded or class is provided by other module, instances are rebound to current source,
+ * or dropped if class is unavailable, so calls fail until it is available again.
+ * Source module refers to proxy weakly, so proxies are collected when they are not used anymore.
+ */
+public class ServiceProxy implements InvocationHandler, LeakInspector {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceProxy.class);
+
+    private static final long DRAIN_MILLIS =
+            Long.getLong(ServiceProxy.class.getName() +".DRAIN_MILLIS", 30000);
+
+    private static final long DRAIN_CHECK_MILLIS = 10;
+
+    private static final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "ServiceProxy");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     private final ModuleManager manager;
     private final String className;
-    private Object instance;
-    private Module source;
+    private final ServiceScope scope;
+    private final AtomicReference<Target> target = new AtomicReference<>();
+
+    private static class Target {
+        private static final int STRIPES = 16;
+        private static final int PADDING = 8; // stripes are kept in different cache lines
+
+        final Instances instances;
+        final Module source;
+        final int version;
+        final AtomicLongArray calls = new AtomicLongArray(STRIPES * PADDING);
+        volatile boolean retired;
+
+        Target(Instances instances, Module source) {
+            this.instances = instances;
+            this.source = source;
+            this.version = (source != null) ? source.getVersion() : 0;
+        }
+
+        static int stripe() {
+            return (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+        }
+
+        boolean isDrained() {
+            for (int i = 0; i < STRIPES; i++) {
+                if (calls.get(i * PADDING) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return instances.type.getName() +" from "+ source;
+        }
+    }
+
+    /**
+     * Listener of source module, which refers to proxy weakly and removes itself after proxy is collected.
+     */
+    private static class SourceListener implements ModuleStateListener {
+        private final WeakReference<ServiceProxy> proxy;
+
+        SourceListener(ServiceProxy proxy) {
+            this.proxy = new WeakReference<>(proxy);
+        }
 
-    private final ModuleStateListener listener = new ModuleStateListener() {
         @Override
         public void stateChanged(Module module) {
-            if (! module.isActive()) {
-                source.removeModuleListener(listener);
-                instance = null;
-                source = null;
+            ServiceProxy proxy = this.proxy.get();
+            if (proxy == null) {
+                module.removeModuleListener(this);
+                return;
+            }
+            Target current = proxy.target.get();
+            if (current != null && module.equals(current.source) && proxy.isOutdated(current)) {
+                proxy.replace(current);
             }
         }
-    };
+    }
+
+    private final SourceListener listener = new SourceListener(this);
 
     @SuppressWarnings("unchecked")
-    public static <T> T create(ModuleManager manager, Class<T> type, String impl) {
+    public static <T> T create(ModuleManager manager, Class<T> type, String impl, ServiceScope scope) {
         return (T) Proxy.newProxyInstance(
                 (ClassLoader) manager.getLoader(),
                 new Class<?>[]{ type },
-                new ServiceProxy(manager, impl));
+                new ServiceProxy(manager, impl, scope));
     }
 
-    public ServiceProxy(ModuleManager manager, String className) {
+    public static <T> T create(ModuleManager manager, Class<T> type, String impl) {
+        return create(manager, type, impl, ServiceScope.SINGLETON);
+    }
+
+    public ServiceProxy(ModuleManager manager, String className, ServiceScope scope) {
         this.manager = manager;
         this.className = className;
+        this.scope = scope;
+        manager.getRetiredLoaders().addInspector(this);
     }
 
-    private void ensureState() throws ReflectiveOperationException {
-        if (instance == null) {
-            try {
-                this.instance = manager.loadClass(className).newInstance();
-                if ((source = manager.findSource(className)) != null) {
-                    source.addModuleListener(listener);
+    public ServiceProxy(ModuleManager manager, String className) {
+        this(manager, className, ServiceScope.SINGLETON);
+    }
+
+    private Target ensureState() throws ReflectiveOperationException {
+        Target current = target.get();
+        return (current != null) ? current : instantiate();
+    }
+
+    private synchronized Target instantiate() throws ReflectiveOperationException {
+        Target current = target.get();
+        if (current == null) {
+            current = newTarget();
+            target.set(current);
+            attach(current);
+        }
+        return current;
+    }
+
+    private Target newTarget() throws ReflectiveOperationException {
+        try {
+            return new Target(
+                    scope.instances(manager.loadClass(className), manager.getMetrics()),
+                    manager.findSource(className));
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Class " + className + " is unavailable at the moment");
+        }
+    }
+
+    private void attach(Target current) {
+        if (current.source != null) {
+            current.source.addModuleListener(listener);
+            if (isOutdated(current)) {
+                replace(current); // changed before listener was added
+            }
+        }
+    }
+
+    /**
+     * Checks if target should be replaced: its module is unloaded, or is active with other version
+     * or does not provide class anymore. While module is not active, previous version is used.
+     */
+    private boolean isOutdated(Target current) {
+        Module source = current.source;
+        return source.getState() == UNLOADED || source.isActive()
+                && (source.getVersion() != current.version || ! source.equals(manager.findSource(className)));
+    }
+
+    /**
+     * Creates instance of new version in background and swaps it with given one,
+     * drops given one if module is unloaded and class is unavailable.
+     */
+    private void replace(final Target previous) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (target.get() != previous || ! isOutdated(previous)) {
+                    return; // already replaced or not ready yet
+                }
+                Target next;
+                try {
+                    next = newTarget();
+                } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                    if (previous.source.getState() != UNLOADED) {
+                        log.warn("Cannot replace {}, previous version is used: {}", previous, e);
+                        return;
+                    }
+                    log.warn("Cannot replace {}, it is dropped: {}", previous, e);
+                    next = null; // instantiated on next call
+                }
+                synchronized (ServiceProxy.this) {
+                    if (! target.compareAndSet(previous, next)) {
+                        return;
+                    }
+                    if (next == null || ! previous.source.equals(next.source)) {
+                        previous.source.removeModuleListener(listener);
+                    }
+                    if (next != null) {
+                        attach(next);
+                    }
                 }
-            } catch (ClassNotFoundException e) {
-                throw new IllegalStateException("Class " + className + " is unavailable at the moment");
+                log.debug("{} is replaced with {}", previous, next);
+                retire(previous, System.currentTimeMillis() + DRAIN_MILLIS);
+            }
+        });
+    }
+
+    /**
+     * Drops current target, its instances are closed after in-flight calls are completed,
+     * called when proxy is not used anymore.
+     */
+    synchronized void drop() {
+        final Target current = target.getAndSet(null);
+        if (current != null) {
+            if (current.source != null) {
+                current.source.removeModuleListener(listener);
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    retire(current, System.currentTimeMillis() + DRAIN_MILLIS);
+                }
+            });
+        }
+    }
+
+    private void retire(final Target previous, final long deadline) {
+        previous.retired = true;
+        if (previous.isDrained()) {
+            close(previous);
+        }
+        else if (System.currentTimeMillis() > deadline) {
+            log.warn("Calls of {} are not completed in {} ms, it is not closed", previous, DRAIN_MILLIS);
+        }
+        else {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retire(previous, deadline);
+                }
+            }, DRAIN_CHECK_MILLIS, MILLISECONDS);
+        }
+    }
+
+    private static void close(Target previous) {
+        for (AutoCloseable instance: previous.instances.retire()) {
+            try {
+                instance.close();
+            } catch (Exception e) {
+                log.warn("Cannot close {}: {}", previous, e);
             }
         }
     }
 
+    @Override
+    public void findHolders(ClassLoader loader, Collection<String> holders) {
+        Target current = target.get();
+        if (current != null && current.instances.type.getClassLoader() == loader) {
+            holders.add("proxy of "+ current +" in "+ scope +" scope");
+        }
+    }
+
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-        ensureState();
-        return method.invoke(instance, args);
+        int stripe = Target.stripe();
+        Target current;
+        while (true) {
+            current = ensureState();
+            current.calls.incrementAndGet(stripe);
+            if (! current.retired) {
+                break;
+            }
+            current.calls.decrementAndGet(stripe); // replaced concurrently
+        }
+        manager.getMetrics().proxyCalled();
+        try {
+            Object instance = current.instances.acquire();
+            try {
+                return method.invoke(instance, args);
+            } finally {
+                current.instances.release(instance);
+            }
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            current.calls.decrementAndGet(stripe);
+        }
     }
 }
@@ -0,0 +1,321 @@
+package ua.atamurius.modulo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.fs.ModuleArchive;
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Registry of service implementations by service interface.
+ * Implementations are registered from {@code META-INF/services} files of active modules
+ * (updated by manager on each module state change) and by {@link ServiceActivator}
+ * for classes annotated with {@link Service}.
+ * <p>
+ * Implementations of each interface are published as immutable array ordered by ranking,
+ * so resolution is single map lookup and never locks.
+ */
+public class ServiceRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceRegistry.class);
+
+    private static final String SERVICES = "META-INF/services/";
+
+    /**
+     * Selection of implementation for each call.
+     */
+    public enum Selection {
+        /**
+         * Implementation with the highest ranking, registered first among equally ranked.
+         */
+        RANKED,
+        /**
+         * Each implementation in turn.
+         */
+        ROUND_ROBIN
+    }
+
+    private final ModuleManager manager;
+
+    private final ConcurrentMap<String,Implementations> services = new ConcurrentHashMap<>();
+
+    /**
+     * Registrations by owner (module or annotated class), guarded by this.
+     */
+    private final Map<Object,Collection<Registration>> owners = new HashMap<>();
+    private long registered = 0;
+
+    /**
+     * Handlers of proxies returned by lookup, weakly referenced and guarded by this.
+     */
+    private final Set<Lookup> lookups = Collections.newSetFromMap(new WeakHashMap<Lookup,Boolean>());
+
+    private static class Registration {
+        final String type;
+        final String impl;
+        final int ranking;
+        final long order;
+
+        Registration(String type, String impl, int ranking, long order) {
+            this.type = type;
+            this.impl = impl;
+            this.ranking = ranking;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Registration> BY_RANKING = new Comparator<Registration>() {
+        @Override
+        public int compare(Registration a, Registration b) {
+            return (a.ranking != b.ranking)
+                    ? Integer.compare(b.ranking, a.ranking)
+                    : Long.compare(a.order, b.order);
+        }
+    };
+
+    private static class Implementations {
+        final String[] ranked;
+        final AtomicInteger cursor = new AtomicInteger();
+
+        Implementations(String[] ranked) {
+            this.ranked = ranked;
+        }
+    }
+
+    public ServiceRegistry(ModuleManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Registers service files of active module, registrations of its previous version are dropped.
+     * Registrations of invalidated module are kept until it is active again, so calls made while
+     * it is reloaded are served by previous version, they are dropped when module is frozen or unloaded.
+     */
+    public void update(Module module) {
+        if (module.getState() == Module.State.INVALIDATED) {
+            return;
+        }
+        Map<String,List<String>> files = module.isActive() ? servicesOf(module) : null;
+        synchronized (this) {
+            // types are published once, so implementations registered again are not evicted
+            Set<String> types = typesOf(owners.remove(module));
+            if (files != null) {
+                for (Map.Entry<String,List<String>> e: files.entrySet()) {
+                    for (String impl: e.getValue()) {
+                        add(e.getKey(), impl, 0, module);
+                    }
+                    types.add(e.getKey());
+                }
+            }
+            for (String type: types) {
+                publish(type);
+            }
+        }
+    }
+
+    private Map<String,List<String>> servicesOf(Module module) {
+        Map<String,List<String>> files = new HashMap<>();
+        try {
+            ModuleArchive archive = module.getArchive();
+            if (archive == null) {
+                return files;
+            }
+            for (String name: archive.getEntries()) {
+                if (name.startsWith(SERVICES) && name.length() > SERVICES.length() && ! name.endsWith("/")) {
+                    files.put(name.substring(SERVICES.length()), parse(archive.read(name)));
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read services of {}: {}", module, e);
+        } catch (IllegalStateException e) {
+            log.debug("{} is reloaded concurrently", module); // next version will be registered
+        }
+        return files;
+    }
+
+    private static List<String> parse(byte[] content) throws IOException {
+        List<String> names = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), UTF_8));
+        for (String line; (line = reader.readLine()) != null; ) {
+            int comment = line.indexOf('#');
+            String name = (comment < 0 ? line : line.substring(0, comment)).trim();
+            if (! name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Registers implementation of service interface on behalf of owner,
+     * implementations with higher ranking are preferred.
+     */
+    public synchronized void register(String type, String impl, int ranking, Object owner) {
+        add(type, impl, ranking, owner);
+        publish(type);
+    }
+
+    private void add(String type, String impl, int ranking, Object owner) {
+        Collection<Registration> owned = owners.get(owner);
+        if (owned == null) {
+            owners.put(owner, owned = new ArrayList<>());
+        }
+        owned.add(new Registration(type, impl, ranking, registered++));
+        log.debug("{} is registered as {} by {}", impl, type, owner);
+    }
+
+    public synchronized void unregister(Object owner) {
+        for (String type: typesOf(owners.remove(owner))) {
+            publish(type);
+        }
+    }
+
+    private static Set<String> typesOf(Collection<Registration> registrations) {
+        Set<String> types = new HashSet<>();
+        if (registrations != null) {
+            for (Registration registration: registrations) {
+                types.add(registration.type);
+            }
+        }
+        return types;
+    }
+
+    private void publish(String type) {
+        List<Registration> registrations = new ArrayList<>();
+        for (Collection<Registration> owned: owners.values()) {
+            for (Registration registration: owned) {
+                if (registration.type.equals(type)) {
+                    registrations.add(registration);
+                }
+            }
+        }
+        Collections.sort(registrations, BY_RANKING);
+        String[] ranked = new String[registrations.size()];
+        for (int i = 0; i < ranked.length; i++) {
+            ranked[i] = registrations.get(i).impl;
+        }
+        if (ranked.length > 0) {
+            services.put(type, new Implementations(ranked));
+        }
+        else {
+            services.remove(type);
+        }
+        for (Lookup lookup: lookups) {
+            if (lookup.type.getName().equals(type)) {
+                lookup.evict(Arrays.asList(ranked));
+            }
+        }
+    }
+
+    /**
+     * Implementations of service interface ordered by ranking.
+     */
+    public List<String> getImplementations(Class<?> type) {
+        Implementations implementations = services.get(type.getName());
+        return (implementations != null)
+                ? Collections.unmodifiableList(Arrays.asList(implementations.ranked))
+                : Collections.<String>emptyList();
+    }
+
+    /**
+     * Implementation of service interface selected as specified, or null if there is none.
+     */
+    public String resolve(Class<?> type, Selection selection) {
+        Implementations implementations = services.get(type.getName());
+        if (implementations == null) {
+            return null;
+        }
+        String[] ranked = implementations.ranked;
+        switch (selection) {
+            case ROUND_ROBIN:
+                return ranked[(implementations.cursor.getAndIncrement() & Integer.MAX_VALUE) % ranked.length];
+            default:
+                return ranked[0];
+        }
+    }
+
+    public String resolve(Class<?> type) {
+        return resolve(type, Selection.RANKED);
+    }
+
+    /**
+     * Proxy of service, which resolves implementation for each call,
+     * so it follows registrations as modules are changed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T lookup(Class<T> type, Selection selection, ServiceScope scope) {
+        Lookup lookup = new Lookup(type, selection, scope);
+        synchronized (this) {
+            lookups.add(lookup);
+        }
+        return (T) Proxy.newProxyInstance(
+                (ClassLoader) manager.getLoader(),
+                new Class<?>[]{ type },
+                lookup);
+    }
+
+    /**
+     * Handler of service proxy, which keeps proxy of each resolved implementation
+     * until implementation is unregistered.
+     */
+    private class Lookup implements InvocationHandler {
+        final Class<?> type;
+        private final Selection selection;
+        private final ServiceScope scope;
+        private final ConcurrentMap<String,ServiceProxy> proxies = new ConcurrentHashMap<>();
+
+        Lookup(Class<?> type, Selection selection, ServiceScope scope) {
+            this.type = type;
+            this.selection = selection;
+            this.scope = scope;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String impl = resolve(type, selection);
+            if (impl == null) {
+                throw new IllegalStateException("There is no implementation of "+ type.getName());
+            }
+            ServiceProxy target = proxies.get(impl);
+            if (target == null) {
+                ServiceProxy created = new ServiceProxy(manager, impl, scope);
+                target = proxies.putIfAbsent(impl, created);
+                if (target == null) {
+                    target = created;
+                }
+            }
+            return target.invoke(proxy, method, args);
+        }
+
+        /**
+         * Drops proxies of implementations, which are not registered anymore.
+         */
+        void evict(Collection<String> registered) {
+            for (Iterator<Map.Entry<String,ServiceProxy>> i = proxies.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<String,ServiceProxy> e = i.next();
+                if (! registered.contains(e.getKey())) {
+                    i.remove();
+                    e.getValue().drop();
+                }
+            }
+        }
+    }
+
+    public <T> T lookup(Class<T> type) {
+        return lookup(type, Selection.RANKED, ServiceScope.SINGLETON);
+    }
+}
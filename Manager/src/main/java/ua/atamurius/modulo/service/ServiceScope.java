@@ -0,0 +1,318 @@
+package ua.atamurius.modulo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ua.atamurius.modulo.metrics.ManagerMetrics;
+import ua.atamurius.modulo.metrics.PoolStats;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Scope of service instances, which are called by {@link ServiceProxy}.
+ * Instances are created for each version of module, instances of previous version
+ * are closed when replaced (if they are {@link AutoCloseable}).
+ */
+public abstract class ServiceScope {
+
+    private static final Logger log = LoggerFactory.getLogger(ServiceScope.class);
+
+    private static final long POOL_TIMEOUT_MILLIS =
+            Long.getLong(ServiceScope.class.getName() +".POOL_TIMEOUT_MILLIS", 30000);
+
+    /**
+     * Single instance shared by all threads, so service must be thread safe.
+     */
+    public static final ServiceScope SINGLETON = new ServiceScope("singleton") {
+        @Override
+        Instances instances(Class<?> type, ManagerMetrics metrics) throws ReflectiveOperationException {
+            return new Instances(type, metrics) {
+                private final Object instance = create();
+
+                @Override
+                Object acquire() {
+                    return instance;
+                }
+            };
+        }
+    };
+
+    /**
+     * Instance per calling thread.
+     * Instances of terminated threads are closed when other thread creates its instance.
+     * Note that long-lived threads (e.g. of executors) keep their instances until module is reloaded,
+     * after that only empty slots (without references to module) stay in their thread locals.
+     */
+    public static final ServiceScope THREAD = new ServiceScope("thread") {
+        @Override
+        Instances instances(Class<?> type, ManagerMetrics metrics) {
+            return new PerThread(type, metrics);
+        }
+    };
+
+    /**
+     * Pool of at most {@code max} instances, each of them serves one call at a time.
+     * Calls are waiting for free instance for {@code ServiceScope.POOL_TIMEOUT_MILLIS} (30000)
+     * and fail with {@link IllegalStateException} after that.
+     * Statistics are available by {@link ManagerMetrics#pool(String)}.
+     */
+    public static ServiceScope pooled(final int max) {
+        if (max < 1)
+            throw new IllegalArgumentException("Pool should have at least one instance");
+        return new ServiceScope("pooled("+ max +")") {
+            @Override
+            Instances instances(Class<?> type, ManagerMetrics metrics) {
+                return new Pool(type, metrics, max);
+            }
+        };
+    }
+
+    private final String name;
+
+    private ServiceScope(String name) {
+        this.name = name;
+    }
+
+    abstract Instances instances(Class<?> type, ManagerMetrics metrics) throws ReflectiveOperationException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Instances of service class of single module version.
+     */
+    static abstract class Instances {
+        final Class<?> type;
+        final ManagerMetrics metrics;
+        private final Collection<AutoCloseable> closeable = new ConcurrentLinkedQueue<>();
+
+        Instances(Class<?> type, ManagerMetrics metrics) {
+            this.type = type;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Creates instance, which is closed when instances are retired.
+         */
+        Object create() throws ReflectiveOperationException {
+            Object instance = newInstance();
+            if (instance instanceof AutoCloseable) {
+                closeable.add((AutoCloseable) instance);
+            }
+            return instance;
+        }
+
+        /**
+         * Creates instance, exceptions of constructor are thrown as is, checked ones are wrapped.
+         */
+        Object newInstance() throws ReflectiveOperationException {
+            Object instance;
+            try {
+                instance = type.getDeclaredConstructor().newInstance();
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+            metrics.proxyInstantiated();
+            return instance;
+        }
+
+        /**
+         * Instance to serve single call.
+         */
+        abstract Object acquire() throws ReflectiveOperationException;
+
+        /**
+         * Instance is not used by call anymore.
+         */
+        void release(Object instance) {
+        }
+
+        /**
+         * Called when instances are not used anymore, returns created instances which should be closed.
+         */
+        Collection<AutoCloseable> retire() {
+            return closeable;
+        }
+    }
+
+    /**
+     * Instances are kept in slots of their threads, slots are tracked to close instances
+     * and cleared when instances are retired, so threads do not keep them after that.
+     */
+    private static class PerThread extends Instances {
+
+        private static class Slot {
+            final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+            volatile Object instance;
+
+            boolean isReleased() {
+                Thread thread = owner.get();
+                return thread == null || ! thread.isAlive();
+            }
+        }
+
+        private final ThreadLocal<Slot> slot = new ThreadLocal<>();
+        private final Collection<Slot> slots = new ConcurrentLinkedQueue<>();
+
+        PerThread(Class<?> type, ManagerMetrics metrics) {
+            super(type, metrics);
+        }
+
+        @Override
+        Object acquire() throws ReflectiveOperationException {
+            Slot current = slot.get();
+            if (current == null) {
+                release();
+                current = new Slot();
+                current.instance = newInstance();
+                slot.set(current);
+                slots.add(current);
+            }
+            return current.instance;
+        }
+
+        /**
+         * Closes instances of terminated threads, which cannot be called anymore.
+         */
+        private void release() {
+            for (Slot slot: slots) {
+                if (slot.isReleased() && slots.remove(slot) && slot.instance instanceof AutoCloseable) {
+                    try {
+                        ((AutoCloseable) slot.instance).close();
+                    } catch (Exception e) {
+                        log.warn("Cannot close {} of terminated thread: {}", type.getName(), e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        Collection<AutoCloseable> retire() {
+            List<AutoCloseable> closeable = new ArrayList<>();
+            for (Slot slot: slots) {
+                if (slot.instance instanceof AutoCloseable) {
+                    closeable.add((AutoCloseable) slot.instance);
+                }
+                slot.instance = null;
+            }
+            slots.clear();
+            return closeable;
+        }
+    }
+
+    /**
+     * Instances are kept in slots, which are taken by compare-and-set starting from slot
+     * of calling thread, so threads mostly use their own slots and do not allocate.
+     */
+    private static class Pool extends Instances {
+        private final int max;
+        private final Object[] instances;
+        private final AtomicIntegerArray busy;
+        private final PoolStats stats;
+        private volatile int waiting = 0;
+
+        Pool(Class<?> type, ManagerMetrics metrics, int max) {
+            super(type, metrics);
+            this.max = max;
+            this.instances = new Object[max];
+            this.busy = new AtomicIntegerArray(max);
+            this.stats = metrics.pool(type.getName());
+            stats.pooled(max);
+        }
+
+        private int first() {
+            return (int) (Thread.currentThread().getId() % max);
+        }
+
+        private int take() {
+            int first = first();
+            for (int i = 0; i < max; i++) {
+                int slot = (first + i) % max;
+                if (busy.get(slot) == 0 && busy.compareAndSet(slot, 0, 1)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object acquire() throws ReflectiveOperationException {
+            int slot = take();
+            if (slot < 0) {
+                slot = await();
+            }
+            Object instance = instances[slot]; // published by release of the slot
+            if (instance == null) {
+                try {
+                    instance = instances[slot] = create();
+                    stats.created();
+                } catch (Throwable e) {
+                    free(slot);
+                    throw e;
+                }
+            }
+            stats.acquired();
+            return instance;
+        }
+
+        private synchronized int await() {
+            long start = System.nanoTime();
+            long deadline = System.currentTimeMillis() + POOL_TIMEOUT_MILLIS;
+            waiting++;
+            try {
+                int slot;
+                while ((slot = take()) < 0) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) {
+                        stats.timedOut();
+                        throw new IllegalStateException("All "+ max +" instances of "+ type.getName()
+                                +" are in use for "+ POOL_TIMEOUT_MILLIS +" ms");
+                    }
+                    wait(left);
+                }
+                stats.waited(System.nanoTime() - start);
+                return slot;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for instance of "+ type.getName());
+            } finally {
+                waiting--;
+            }
+        }
+
+        @Override
+        void release(Object instance) {
+            int first = first();
+            for (int i = 0; i < max; i++) {
+                int slot = (first + i) % max;
+                if (instances[slot] == instance) {
+                    stats.released();
+                    free(slot);
+                    return;
+                }
+            }
+        }
+
+        private void free(int slot) {
+            busy.set(slot, 0);
+            if (waiting > 0) {
+                synchronized (this) {
+                    notify();
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,9 @@ import ua.atamurius.modulo.activator.ModuleActivator;
 import ua.atamurius.modulo.fs.FileWatcher;
 import ua.atamurius.modulo.manager.Module;
 import ua.atamurius.modulo.manager.ModuleManager;
+import ua.atamurius.modulo.manager.StartupSnapshot;
+import ua.atamurius.modulo.service.Service;
+import ua.atamurius.modulo.service.ServiceActivator;
 
 import java.io.File;
 import java.io.IOException;
@@ -16,12 +19,22 @@ public class Main {
         System.out.println("Starting...");
 
         ModuleManager manager = new ModuleManager();
-        manager.addModuleListener(new ModuleActivator());
+        manager.getMetrics().register();
+        ModuleActivator activator = new ModuleActivator();
+        activator.getRepository().register(Service.class, new ServiceActivator(manager.getServices()));
+        StartupSnapshot snapshot = StartupSnapshot.load(new File("modules.snapshot"));
+        manager.setSnapshot(snapshot);
+        activator.restore(snapshot);
 
         FileWatcher watcher = new FileWatcher(manager);
         watcher.watch(new File("modules"));
+        activator.activateAll(manager.getModules());
+        manager.addModuleListener(activator);
+        manager.addUsageListener(activator);
+        manager.getRetiredLoaders().addInspector(activator);
+        watcher.start();
 
-        Callable<String> c = manager.lookup(Callable.class, "ua.atamurius.modulo.module1.TestCallable");
+        Callable<String> c = manager.lookup(Callable.class);
         while (! Thread.interrupted()) {
             try {
                 System.out.println(c.call());
@@ -33,8 +46,18 @@ public class Main {
                 for (Module d: m.getDependencies())
                     System.out.printf("     ~ depends on %s %s%n", d, m.getDependencyClasses(d));
             }
+            save(snapshot, manager, activator);
             System.in.read();
-            watcher.update();
+        }
+    }
+
+    private static void save(StartupSnapshot snapshot, ModuleManager manager, ModuleActivator activator) {
+        snapshot.capture(manager);
+        activator.capture(snapshot);
+        try {
+            snapshot.save();
+        } catch (IOException e) {
+            System.err.println("Cannot save snapshot: "+ e);
         }
     }
 }
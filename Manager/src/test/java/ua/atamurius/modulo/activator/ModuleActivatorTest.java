@@ -0,0 +1,64 @@
+package ua.atamurius.modulo.activator;
+
+import org.junit.Test;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ModuleActivatorTest {
+
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Marker {}
+
+    @Marker
+    public static class Marked {}
+
+    private static class RecordingActivator implements Activator<Marker> {
+        final List<Class<?>> activated = new ArrayList<>();
+
+        @Override
+        public boolean activate(Class<?> type, Marker target) {
+            activated.add(type);
+            return true;
+        }
+
+        @Override
+        public void deactivate(Class<?> type, Marker target) {
+            activated.remove(type);
+        }
+    }
+
+    @Test
+    public void activatorIsRegisteredInNewModuleActivator() {
+        ModuleActivator activator = new ModuleActivator(false);
+        ActivatorRepository repository = activator.getRepository();
+        assertTrue(repository.isRegistered(ActivatorFor.class.getName()));
+        assertFalse(repository.isRegistered(Marker.class.getName()));
+
+        RecordingActivator marker = new RecordingActivator();
+        repository.register(Marker.class, marker);
+
+        assertTrue(repository.isRegistered(Marker.class.getName()));
+        assertTrue(repository.activate(Marked.class));
+        assertEquals(asList(Marked.class), marker.activated);
+    }
+
+    @Test
+    public void unregisteredActivatorIsNotUsed() {
+        ActivatorRepository repository = new ModuleActivator(false).getRepository();
+        RecordingActivator marker = new RecordingActivator();
+        repository.register(Marker.class, marker);
+        repository.unregister(Marker.class);
+
+        assertFalse(repository.isRegistered(Marker.class.getName()));
+        assertFalse(repository.activate(Marked.class));
+        assertTrue(marker.activated.isEmpty());
+    }
+}
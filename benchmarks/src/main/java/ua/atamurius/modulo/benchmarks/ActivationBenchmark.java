@@ -0,0 +1,43 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.activator.ModuleActivator;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Module activation time depending on number of classes in module JAR.
+ * Half of the classes are annotated and get activated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int classes;
+
+    private Module module;
+    private final ModuleActivator activator = new ModuleActivator();
+
+    @Setup
+    public void setUp() {
+        ModuleManager manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.annotated(classes));
+        module = SyntheticModules.find(manager, 0);
+    }
+
+    @Benchmark
+    public Module activate() {
+        module.update(); // new class loader, so classes are loaded again
+        activator.activate(module);
+        activator.deactivate(module);
+        return module;
+    }
+}
@@ -0,0 +1,97 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.util.concurrent.TimeUnit;
+
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Concurrent class loading through manager, by one and by several threads.
+ * Cold benchmarks load all classes of module right after it is reloaded
+ * (each thread loads all of them in the same order, as request threads warming up),
+ * warm benchmarks resolve already loaded classes.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ClassLoadingBenchmark {
+
+    @Param({"1000"})
+    public int classes;
+
+    private ModuleManager manager;
+    private Module module;
+    private String[] names;
+
+    @Setup
+    public void setUp() throws Exception {
+        manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.independent("p", 1, classes));
+        module = manager.getModules().iterator().next();
+        names = new String[classes];
+        for (int i = 0; i < classes; i++) {
+            names[i] = className("p", 0, "C"+ i);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reload() {
+        module.update();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    private Object loadAll() throws ClassNotFoundException {
+        Object last = null;
+        for (String name: names) {
+            last = manager.loadClass(name);
+        }
+        return last;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @Threads(1)
+    public Object coldSingle() throws ClassNotFoundException {
+        return loadAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    @Threads(4)
+    public Object coldParallel() throws ClassNotFoundException {
+        return loadAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Threads(1)
+    public Class<?> warmSingle(Cursor cursor) throws ClassNotFoundException {
+        return manager.loadClass(names[cursor.next++ % classes]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Threads(4)
+    public Class<?> warmParallel(Cursor cursor) throws ClassNotFoundException {
+        return manager.loadClass(names[cursor.next++ % classes]);
+    }
+}
@@ -0,0 +1,62 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.util.concurrent.TimeUnit;
+
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Class lookups through manager loader as number of modules grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherBenchmark {
+
+    @Param({"10", "100", "300"})
+    public int modules;
+
+    @Param({"20"})
+    public int classes;
+
+    private ModuleManager manager;
+    private String hit;
+    private long missCounter;
+
+    @Setup
+    public void setUp() throws Exception {
+        manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.independent(modules, classes));
+        hit = className(modules - 1, "C"+ (classes - 1));
+        manager.loadClass(hit);
+    }
+
+    @Benchmark
+    public Class<?> hit() throws ClassNotFoundException {
+        return manager.loadClass(hit);
+    }
+
+    @Benchmark
+    public Object miss() {
+        try {
+            return manager.loadClass("synthetic.Missing");
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object missUncached() {
+        try {
+            return manager.loadClass("synthetic.Missing"+ missCounter++);
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+}
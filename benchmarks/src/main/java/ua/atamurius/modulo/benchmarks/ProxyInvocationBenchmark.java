@@ -0,0 +1,68 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Throughput of service proxy calls next to direct calls of the same implementation
+ * and to the ways proxy can invoke it: reflective call and method handle cached per method
+ * (kept in field, so it is not constant for JIT, as handles looked up by method would not be).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyInvocationBenchmark {
+
+    private Callable<?> proxy;
+    private Callable<?> direct;
+    private Method method;
+    private MethodHandle handle;
+    private final Object[] args = new Object[0];
+
+    @Setup
+    public void setUp() throws Exception {
+        ModuleManager manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.service());
+        String impl = className(0, "Counter");
+        proxy = manager.lookup(Callable.class, impl);
+        direct = (Callable<?>) manager.loadClass(impl).getDeclaredConstructor().newInstance();
+        method = Callable.class.getMethod("call");
+        // proxy gets instance and arguments array, so handle would take them as well
+        handle = MethodHandles.publicLookup().unreflect(method)
+                .asType(MethodType.genericMethodType(1))
+                .asSpreader(Object[].class, 0);
+    }
+
+    @Benchmark
+    public Object proxy() throws Exception {
+        return proxy.call();
+    }
+
+    @Benchmark
+    public Object direct() throws Exception {
+        return direct.call();
+    }
+
+    @Benchmark
+    public Object reflective() throws Exception {
+        return method.invoke(direct, args);
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Throwable {
+        return (Object) handle.invokeExact((Object) direct, args);
+    }
+}
@@ -0,0 +1,167 @@
+package ua.atamurius.modulo.benchmarks;
+
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Stress test of module registry: thousands of threads resolve classes
+ * while modules are reloaded and new modules are registered.
+ * Missing classes (including super classes from reloaded dependencies) are expected
+ * while their modules are reloaded, any other failure is an error.
+ * <p>
+ * Usage: {@code java -cp benchmarks.jar ua.atamurius.modulo.benchmarks.RegistryStress [threads] [seconds]}
+ */
+public class RegistryStress {
+
+    private static final int CHAIN = 5;
+    private static final int EXTRA = 200;
+    private static final int CLASSES = 10;
+
+    private static final String EXTRA_PREFIX = "x";
+
+    private final ModuleManager manager = new ModuleManager();
+    private final List<Module> chain = new ArrayList<>();
+    private final File[] extra = SyntheticModules.independent(EXTRA_PREFIX, EXTRA, CLASSES).listFiles();
+    private volatile int registered = 0;
+    private volatile long deadline;
+
+    private final AtomicLong resolved = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        RegistryStress stress = new RegistryStress();
+        stress.run(threads, seconds);
+        System.exit(stress.errors.isEmpty() ? 0 : 1);
+    }
+
+    private RegistryStress() {
+        new FileWatcher(manager).watch(SyntheticModules.chain(CHAIN, CLASSES));
+        for (int i = 0; i < CHAIN; i++) {
+            chain.add(SyntheticModules.find(manager, i));
+        }
+    }
+
+    private void run(int threads, int seconds) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads + 2);
+        deadline = System.currentTimeMillis() + seconds * 1000L;
+        for (int i = 0; i < threads; i++) {
+            start("resolver-"+ i, done, new Runnable() {
+                @Override
+                public void run() {
+                    resolve();
+                }
+            });
+        }
+        start("reloader", done, new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        });
+        start("registrar", done, new Runnable() {
+            @Override
+            public void run() {
+                register();
+            }
+        });
+        done.await();
+        System.out.println(format("threads: %d, resolved: %d, unavailable: %d, reloads: %d, modules: %d, errors: %d",
+                threads, resolved.get(), unavailable.get(), reloads.get(), manager.getModules().size(), errors.size()));
+        int shown = 0;
+        for (Throwable error: errors) {
+            if (shown++ == 10) {
+                break;
+            }
+            error.printStackTrace();
+        }
+    }
+
+    private void start(String name, final CountDownLatch done, final Runnable task) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean running() {
+        return System.currentTimeMillis() < deadline;
+    }
+
+    private void resolve() {
+        Random random = new Random();
+        while (running()) {
+            String name;
+            int registered = this.registered;
+            if (registered > 0 && random.nextBoolean()) {
+                name = className(EXTRA_PREFIX, random.nextInt(registered), "C"+ random.nextInt(CLASSES));
+            }
+            else {
+                name = className(random.nextInt(CHAIN), "C"+ random.nextInt(CLASSES));
+            }
+            try {
+                manager.loadClass(name);
+                resolved.incrementAndGet();
+            } catch (ClassNotFoundException e) {
+                unavailable.incrementAndGet();
+            } catch (NoClassDefFoundError e) {
+                if (String.valueOf(e.getMessage()).startsWith("synthetic/")) {
+                    unavailable.incrementAndGet();
+                }
+                else {
+                    errors.add(e);
+                }
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        }
+    }
+
+    private void reload() {
+        Random random = new Random();
+        while (running()) {
+            chain.get(random.nextInt(CHAIN)).invalidate();
+            for (Module module: chain) {
+                if (module.getState() == Module.State.INVALIDATED) {
+                    module.update();
+                }
+            }
+            reloads.incrementAndGet();
+        }
+    }
+
+    private void register() {
+        for (File file: extra) {
+            if (! running()) {
+                break;
+            }
+            new Module(manager, file);
+            registered++;
+        }
+    }
+}
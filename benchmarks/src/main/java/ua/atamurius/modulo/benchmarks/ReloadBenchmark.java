@@ -0,0 +1,77 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Invalidation cascade and module update over dependency chains of different depth.
+ * Each module of the chain depends on the previous one, the first one is reloaded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReloadBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int depth;
+
+    @Param({"10"})
+    public int classes;
+
+    private ModuleManager manager;
+    private final List<Module> chain = new ArrayList<>();
+    private String tail;
+
+    @Setup
+    public void setUp() throws Exception {
+        manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.chain(depth, classes));
+        for (int i = 0; i < depth; i++) {
+            chain.add(SyntheticModules.find(manager, i));
+        }
+        tail = className(depth - 1, "C0");
+        link();
+    }
+
+    /**
+     * Updates invalidated modules and loads the last class, which links the chain again.
+     */
+    private Class<?> link() throws ClassNotFoundException {
+        for (Module module: chain) {
+            module.update();
+        }
+        return manager.loadClass(tail);
+    }
+
+    @State(Scope.Thread)
+    public static class Linked {
+        @Setup(Level.Invocation)
+        public void setUp(ReloadBenchmark benchmark) throws ClassNotFoundException {
+            benchmark.link();
+        }
+    }
+
+    @Benchmark
+    public Module invalidate(Linked linked) {
+        Module root = chain.get(0);
+        root.invalidate();
+        return root;
+    }
+
+    @Benchmark
+    public Class<?> reload() throws ClassNotFoundException {
+        chain.get(0).invalidate();
+        return link();
+    }
+}
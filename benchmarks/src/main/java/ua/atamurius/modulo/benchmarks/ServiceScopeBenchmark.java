@@ -0,0 +1,56 @@
+package ua.atamurius.modulo.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ua.atamurius.modulo.fs.FileWatcher;
+import ua.atamurius.modulo.manager.ModuleManager;
+import ua.atamurius.modulo.service.ServiceScope;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static ua.atamurius.modulo.benchmarks.SyntheticModules.className;
+
+/**
+ * Throughput of concurrent proxy calls to non thread safe service in each scope,
+ * singleton calls are synchronized as such service would require.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ServiceScopeBenchmark {
+
+    private Callable<?> singleton;
+    private Callable<?> thread;
+    private Callable<?> pooled;
+
+    @Setup
+    public void setUp() throws Exception {
+        ModuleManager manager = new ModuleManager();
+        new FileWatcher(manager).watch(SyntheticModules.service());
+        String impl = className(0, "Counter");
+        singleton = manager.lookup(Callable.class, impl, ServiceScope.SINGLETON);
+        thread = manager.lookup(Callable.class, impl, ServiceScope.THREAD);
+        pooled = manager.lookup(Callable.class, impl, ServiceScope.pooled(4));
+    }
+
+    @Benchmark
+    public Object singleton() throws Exception {
+        synchronized (singleton) {
+            return singleton.call();
+        }
+    }
+
+    @Benchmark
+    public Object thread() throws Exception {
+        return thread.call();
+    }
+
+    @Benchmark
+    public Object pooled() throws Exception {
+        return pooled.call();
+    }
+}
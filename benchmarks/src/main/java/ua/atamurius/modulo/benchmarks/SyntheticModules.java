@@ -0,0 +1,208 @@
+package ua.atamurius.modulo.benchmarks;
+
+import ua.atamurius.modulo.manager.Module;
+import ua.atamurius.modulo.manager.ModuleManager;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Generates module JARs for benchmarks, so they can be run without real modules.
+ * Module {@code m<i>} contains classes of package {@code synthetic.m<i>},
+ * other prefix than {@code m} can be used for independent modules.
+ * Generated modules are kept in temporary directory and reused by subsequent runs.
+ */
+public class SyntheticModules {
+
+    private static final File ROOT = new File(System.getProperty("java.io.tmpdir"), "modulo-benchmarks");
+    private static final String COMPLETE = ".complete";
+
+    private static final String PREFIX = "m";
+
+    private final String name;
+    private final String prefix;
+    private final Map<String,Map<String,String>> modules = new LinkedHashMap<>();
+
+    private SyntheticModules(String name) {
+        this(name, PREFIX);
+    }
+
+    private SyntheticModules(String name, String prefix) {
+        this.name = name;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Modules without dependencies, class {@code synthetic.m<i>.C<j>} returns j.
+     */
+    public static File independent(int modules, int classes) {
+        return independent(PREFIX, modules, classes);
+    }
+
+    public static File independent(String prefix, int modules, int classes) {
+        SyntheticModules generator = new SyntheticModules(
+                format("independent-%s-%d-%d", prefix, modules, classes), prefix);
+        for (int i = 0; i < modules; i++) {
+            for (int j = 0; j < classes; j++) {
+                generator.add(i, "C"+ j, format("public class C%d { public int value() { return %d; } }", j, j));
+            }
+        }
+        return generator.generate();
+    }
+
+    /**
+     * Chain of modules, where {@code synthetic.m<i>.C0} extends class from previous module.
+     */
+    public static File chain(int depth, int classes) {
+        SyntheticModules generator = new SyntheticModules(format("chain-%d-%d", depth, classes));
+        for (int i = 0; i < depth; i++) {
+            generator.add(i, "C0", i == 0 ?
+                    "public class C0 { }" :
+                    format("public class C0 extends synthetic.m%d.C0 { }", i - 1));
+            for (int j = 1; j < classes; j++) {
+                generator.add(i, "C"+ j, format("public class C%d { }", j));
+            }
+        }
+        return generator.generate();
+    }
+
+    /**
+     * Single module with activator for {@code Marker} annotation,
+     * every other class of the module is annotated with it.
+     */
+    public static File annotated(int classes) {
+        SyntheticModules generator = new SyntheticModules(format("annotated-%d", classes));
+        generator.add(0, "Marker",
+                "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME) " +
+                "public @interface Marker { }");
+        generator.add(0, "MarkerActivator",
+                "@ua.atamurius.modulo.activator.ActivatorFor(Marker.class) " +
+                "public class MarkerActivator implements ua.atamurius.modulo.activator.Activator<Marker> { " +
+                "  public boolean activate(Class<?> type, Marker target) { return true; } " +
+                "  public void deactivate(Class<?> type, Marker target) { } " +
+                "}");
+        for (int j = 0; j < classes; j++) {
+            generator.add(0, "C"+ j, (j % 2 == 0 ? "@Marker " : "") + format("public class C%d { }", j));
+        }
+        return generator.generate();
+    }
+
+    /**
+     * Single module with {@code synthetic.m0.Counter} implementing {@code Callable<Integer>}.
+     */
+    public static File service() {
+        SyntheticModules generator = new SyntheticModules("service");
+        generator.add(0, "Counter",
+                "public class Counter implements java.util.concurrent.Callable<Integer> { " +
+                "  private int count; " +
+                "  public Integer call() { return count++; } " +
+                "}");
+        return generator.generate();
+    }
+
+    public static String className(int module, String simpleName) {
+        return className(PREFIX, module, simpleName);
+    }
+
+    public static String className(String prefix, int module, String simpleName) {
+        return format("synthetic.%s%d.%s", prefix, module, simpleName);
+    }
+
+    public static Module find(ModuleManager manager, int module) {
+        for (Module candidate: manager.getModules()) {
+            if (candidate.getName().equals("m"+ module)) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("Module m"+ module +" is not found");
+    }
+
+    private void add(int module, String simpleName, String body) {
+        String moduleName = prefix + module;
+        if (! modules.containsKey(moduleName)) {
+            modules.put(moduleName, new LinkedHashMap<String,String>());
+        }
+        modules.get(moduleName).put(simpleName, format("package synthetic.%s; %s", moduleName, body));
+    }
+
+    private File generate() {
+        File dir = new File(ROOT, name);
+        File jars = new File(dir, "modules");
+        if (new File(dir, COMPLETE).isFile()) {
+            return jars;
+        }
+        File classes = new File(dir, "classes");
+        if (! classes.isDirectory() && ! classes.mkdirs() || ! jars.isDirectory() && ! jars.mkdirs()) {
+            throw new IllegalStateException("Cannot create "+ dir);
+        }
+        try {
+            compile(classes);
+            for (String module: modules.keySet()) {
+                pack(new File(classes, "synthetic/"+ module), "synthetic/"+ module +"/", new File(jars, module +".jar"));
+            }
+            new File(dir, COMPLETE).createNewFile();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot generate modules in "+ dir, e);
+        }
+        return jars;
+    }
+
+    private void compile(File output) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("Java compiler is not available, JDK is required");
+        }
+        List<JavaFileObject> sources = new ArrayList<>();
+        for (Map.Entry<String,Map<String,String>> module: modules.entrySet()) {
+            for (Map.Entry<String,String> cls: module.getValue().entrySet()) {
+                sources.add(new Source("synthetic/"+ module.getKey() +"/"+ cls.getKey(), cls.getValue()));
+            }
+        }
+        List<String> options = Arrays.asList(
+                "-d", output.getPath(),
+                "-classpath", System.getProperty("java.class.path"),
+                "-proc:none");
+        if (! compiler.getTask(null, null, null, options, null, sources).call()) {
+            throw new IllegalStateException("Compilation of synthetic modules failed");
+        }
+    }
+
+    private static void pack(File dir, String prefix, File jar) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            byte[] buffer = new byte[8192];
+            for (File file: dir.listFiles()) {
+                out.putNextEntry(new JarEntry(prefix + file.getName()));
+                try (InputStream in = new FileInputStream(file)) {
+                    for (int read; (read = in.read(buffer)) != -1; ) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String code;
+
+        Source(String path, String code) {
+            super(URI.create("string:///"+ path + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+}